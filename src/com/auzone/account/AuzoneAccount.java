@@ -29,6 +29,7 @@ import android.content.ComponentName;
 import android.content.Context;
 
 import com.auzone.account.encryption.ECDHKeyService;
+import com.auzone.account.gcm.GCMIntentService;
 import com.auzone.account.util.AuzoneAccountUtils;
 
 public class AuzoneAccount extends Application implements Response.Listener<GetMinimumAppVersionResponse>, Response.ErrorListener {
@@ -60,6 +61,7 @@ public class AuzoneAccount extends Application implements Response.Listener<GetM
     public static final String AUTH_PREFERENCES = "com.auzone.account.auth";
     public static final String SETTINGS_PREFERENCES = "com.auzone.account_preferences";
     public static final String ENCRYPTION_PREFERENCES = "com.auzone.account.encryption";
+    public static final String KEY_REFILL_PREFERENCES = "com.auzone.account.encryption.refill";
 
     public static final String BACKOFF_MS = "backoff_ms";
     public static final int DEFAULT_BACKOFF_MS = 3000;
@@ -88,9 +90,13 @@ public class AuzoneAccount extends Application implements Response.Listener<GetM
         AuthClient authClient = AuthClient.getInstance(getApplicationContext());
         // Warm ECDH public keys
         ECDHKeyService.startGenerateNoUpload(getApplicationContext());
+        // Finish any messages the last process died in the middle of
+        GCMIntentService.startResume(getApplicationContext());
         // Check minimum required app version
         if (AuzoneAccountUtils.isNetworkConnected(getApplicationContext())) {
             authClient.getMinimumAppVersion(this, this);
+            // Drop keys the server has already handed out
+            ECDHKeyService.startReconcile(getApplicationContext());
         }
     }
 
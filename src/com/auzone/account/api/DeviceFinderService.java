@@ -18,6 +18,7 @@ package com.auzone.account.api;
 
 import com.auzone.account.api.request.SendChannelRequestBody;
 import com.auzone.account.util.AuzoneAccountUtils;
+import com.auzone.account.util.WakeLockManager;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesClient;
 import com.google.android.gms.location.LocationClient;
@@ -28,6 +29,7 @@ import com.android.volley.Response;
 import com.android.volley.VolleyError;
 import com.auzone.account.AuzoneAccount;
 import com.auzone.account.auth.AuthClient;
+import com.auzone.account.gcm.MessageTracer;
 
 import android.accounts.Account;
 import android.app.Service;
@@ -38,7 +40,6 @@ import android.location.Location;
 import android.location.LocationManager;
 import android.os.Bundle;
 import android.os.IBinder;
-import android.os.PowerManager;
 import android.provider.Settings;
 import android.util.Log;
 
@@ -47,7 +48,9 @@ public class DeviceFinderService extends Service implements LocationListener,
         Response.Listener<Integer>, Response.ErrorListener {
 
     private static final String TAG = DeviceFinderService.class.getSimpleName();
-    private static PowerManager.WakeLock sWakeLock;
+    // Renewed by every reportLocation and held until the service is destroyed
+    private static WakeLockManager.Scope sWakeLock;
+    private static final int WAKE_LOCK_TIMEOUT = 1000 * 60 * 5;
 
     private static final String EXTRA_ACCOUNT = "account";
     private static final String EXTRA_KEY_ID = "key_id";
@@ -60,24 +63,26 @@ public class DeviceFinderService extends Service implements LocationListener,
     private Location mLastLocationUpdate;
     private AuthClient mAuthClient;
     private String mKeyId;
+    private long mTraceId = MessageTracer.NO_TRACE;
 
     private int mUpdateCount = 0;
 
     private boolean mIsRunning = false;
 
-    public static void reportLocation(Context context, Account account, final String keyId) {
-        if (sWakeLock == null) {
-            PowerManager pm = (PowerManager)
-                    context.getSystemService(Context.POWER_SERVICE);
-            sWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-        }
-        if (!sWakeLock.isHeld()) {
-            if (AuzoneAccount.DEBUG) Log.v(TAG, "Acquiring wakelock");
-            sWakeLock.acquire();
+    public static void reportLocation(Context context, Account account, final String keyId, long traceId) {
+        synchronized (DeviceFinderService.class) {
+            // Take the new scope before closing the old one, which may already have expired,
+            // so the device can't sleep in between
+            WakeLockManager.Scope previous = sWakeLock;
+            sWakeLock = WakeLockManager.getInstance(context).acquire(TAG, WAKE_LOCK_TIMEOUT);
+            if (previous != null) {
+                previous.close();
+            }
         }
         Intent intent = new Intent(context, DeviceFinderService.class);
         intent.putExtra(EXTRA_ACCOUNT, account);
         intent.putExtra(EXTRA_KEY_ID, keyId);
+        intent.putExtra(MessageTracer.EXTRA_TRACE_ID, traceId);
         context.startService(intent);
     }
 
@@ -106,7 +111,10 @@ public class DeviceFinderService extends Service implements LocationListener,
         // Reset the session
         if (intent != null) {
             Bundle extras = intent.getExtras();
-            if (extras != null) mKeyId = extras.getString(EXTRA_KEY_ID);
+            if (extras != null) {
+                mKeyId = extras.getString(EXTRA_KEY_ID);
+                mTraceId = extras.getLong(MessageTracer.EXTRA_TRACE_ID, MessageTracer.NO_TRACE);
+            }
         }
 
         if (mLocationClient.isConnected()) {
@@ -137,9 +145,11 @@ public class DeviceFinderService extends Service implements LocationListener,
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (sWakeLock != null) {
-            if (AuzoneAccount.DEBUG) Log.v(TAG, "Releasing wakelock");
-            sWakeLock.release();
+        synchronized (DeviceFinderService.class) {
+            if (sWakeLock != null) {
+                sWakeLock.close();
+                sWakeLock = null;
+            }
         }
         mIsRunning = false;
     }
@@ -154,7 +164,9 @@ public class DeviceFinderService extends Service implements LocationListener,
         mLastLocationUpdate = location;
         if (!fromLastLocation) mUpdateCount++;
 
+        MessageTracer.getInstance().hop(mTraceId, MessageTracer.HOP_LOCATION_FIX);
         SendChannelRequestBody sendChannelRequestBody = new SendChannelRequestBody(getApplicationContext(), mKeyId, location);
+        sendChannelRequestBody.setTraceId(mTraceId);
         mAuthClient.sendChannel(sendChannelRequestBody, this, this);
     }
 
@@ -22,22 +22,22 @@ import com.auzone.account.AuzoneAccount;
 import com.auzone.account.auth.AuthClient;
 import com.auzone.account.encryption.ECDHKeyService;
 import com.auzone.account.util.AuzoneAccountUtils;
+import com.auzone.account.util.WakeLockManager;
 
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.os.IBinder;
-import android.os.PowerManager;
-import android.util.Log;
 
 public class PingService extends Service implements Response.ErrorListener, Response.Listener<PingResponse> {
 
     private static final String TAG = PingService.class.getSimpleName();
-    private static PowerManager.WakeLock sWakeLock;
+    private static final int WAKE_LOCK_TIMEOUT = 1000 * 60 * 2;
 
     private static final String EXTRA_RETRY= "retry";
 
     private AuthClient mAuthClient;
+    private WakeLockManager.Scope mWakeLock;
 
     public static void pingServer(Context context) {
         Intent intent = getPingIntent(context);
@@ -52,14 +52,8 @@ public class PingService extends Service implements Response.ErrorListener, Resp
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         final Context context = getApplicationContext();
-        if (sWakeLock == null) {
-            PowerManager pm = (PowerManager)
-                    context.getSystemService(Context.POWER_SERVICE);
-            sWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-        }
-        if (!sWakeLock.isHeld()) {
-            if (AuzoneAccount.DEBUG) Log.v(TAG, "Acquiring wakelock");
-            sWakeLock.acquire();
+        if (mWakeLock == null) {
+            mWakeLock = WakeLockManager.getInstance(context).acquire(TAG, WAKE_LOCK_TIMEOUT);
         }
         if (AuzoneAccountUtils.getAuzoneAccountAccount(context) == null) {
             AuzoneAccountUtils.cancelAuzoneAccountPing(context, intent);
@@ -77,10 +71,7 @@ public class PingService extends Service implements Response.ErrorListener, Resp
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (sWakeLock != null) {
-            if (AuzoneAccount.DEBUG) Log.v(TAG, "Releasing wakelock");
-            sWakeLock.release();
-        }
+        if (mWakeLock != null) mWakeLock.close();
     }
 
     @Override
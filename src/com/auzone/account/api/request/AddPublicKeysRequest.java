@@ -30,10 +30,22 @@ import com.google.gson.JsonSyntaxException;
 public class AddPublicKeysRequest extends AuzoneAccountJsonRequest<AddPublicKeysResponse> {
     private static final String TAG = AddPublicKeysRequest.class.getSimpleName();
 
-    public AddPublicKeysRequest(String authToken, String message, Response.Listener<AddPublicKeysResponse> listener,
+    private final byte[] mBody;
+
+    public AddPublicKeysRequest(String authToken, byte[] body, Response.Listener<AddPublicKeysResponse> listener,
                                 Response.ErrorListener errorListener) {
-        super(AuthClient.ADD_PUBLIC_KEYS_URI, message, listener, errorListener);
+        super(AuthClient.ADD_PUBLIC_KEYS_URI, null, listener, errorListener);
         addHeader(PARAM_AUTHORIZATION, "OAuth " + authToken);
+        mBody = body;
+    }
+
+    /**
+     * The body is already UTF-8 encoded by AddPublicKeysRequestBody, so hand it over as is
+     * instead of round tripping through a String.
+     */
+    @Override
+    public byte[] getBody() {
+        return mBody;
     }
 
     @Override
@@ -16,94 +16,78 @@
 package com.auzone.account.api.request;
 
 import android.content.Context;
-import com.auzone.account.encryption.ECKeyPair;
+import com.auzone.account.provider.KeyStore;
 import com.auzone.account.util.AuzoneAccountUtils;
-import com.auzone.account.util.EncryptionUtils;
-import com.google.gson.Gson;
-
-import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.LinkedList;
 import java.util.List;
 
+/**
+ * add_public_keys body, encoded once with a streaming writer.  Keys carry their encoded form
+ * and signature from ecdh_keys, so each one is only hashed and written.
+ */
 public class AddPublicKeysRequestBody {
-    private LinkedList<PublicKey> public_keys;
-    private String public_keys_hash;
-    private String device_id;
-
-    public AddPublicKeysRequestBody(Context context, List<ECKeyPair> keyPairs) {
-        device_id = AuzoneAccountUtils.getUniqueDeviceId(context);
-        public_keys = new LinkedList<PublicKey>();
-        byte[] hmacSecret = AuzoneAccountUtils.getHmacSecret(context);
-
-        for (ECKeyPair keyPair : keyPairs) {
-            String key_id = keyPair.getKeyId();
-            ECPublicKeyParameters publicKey = keyPair.getPublicKey();
-            String signature = calculateSignature(publicKey, hmacSecret);
-
-            public_keys.add(new PublicKey(publicKey, key_id, signature));
+    // Rough size of one encoded key, used to presize the output buffer
+    private static final int BYTES_PER_KEY = 320;
+
+    private final byte[] mBody;
+    private final String mPublicKeysHash;
+
+    /**
+     * @param keys signed public keys sorted by key_id
+     */
+    public AddPublicKeysRequestBody(Context context, List<KeyStore.ECDHKey> keys) {
+        String deviceId = AuzoneAccountUtils.getUniqueDeviceId(context);
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
         }
 
-        public_keys_hash = generatePublicKeysHash();
-    }
-
-    private String generatePublicKeysHash() {
-        Collections.sort(public_keys);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(keys.size() * BYTES_PER_KEY + 128);
         try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-
-            for (PublicKey publicKey : public_keys) {
-                md.update(publicKey.getKeyId().getBytes());
-                md.update(publicKey.getSignature().getBytes());
-                md.update(publicKey.getPublicKey().getBytes());
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+            writer.beginObject();
+            writer.name("device_id").value(deviceId);
+            writer.name("public_keys").beginArray();
+            for (KeyStore.ECDHKey key : keys) {
+                String keyId = key.getKeyId();
+                String publicKey = key.getEncoded();
+                String signature = key.getSignature();
+
+                md.update(keyId.getBytes());
+                md.update(signature.getBytes());
+                md.update(publicKey.getBytes());
+
+                writer.beginObject();
+                writer.name("public_key").value(publicKey);
+                writer.name("key_id").value(keyId);
+                writer.name("signature").value(signature);
+                writer.endObject();
             }
-
-            return AuzoneAccountUtils.encodeHex(md.digest());
-        } catch (NoSuchAlgorithmException e) {
+            writer.endArray();
+            mPublicKeysHash = AuzoneAccountUtils.encodeHex(md.digest());
+            writer.name("public_keys_hash").value(mPublicKeysHash);
+            writer.endObject();
+            writer.close();
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw
             throw new AssertionError(e);
         }
+        mBody = out.toByteArray();
     }
 
-    private String calculateSignature(ECPublicKeyParameters publicKey, byte[] hmacSecret) {
-        return EncryptionUtils.HMAC.getSignature(hmacSecret,
-                AuzoneAccountUtils.encodeHex(publicKey.getQ().getEncoded()));
+    public String getPublicKeysHash() {
+        return mPublicKeysHash;
     }
 
-    public String toJson(Gson gson) {
-        return gson.toJson(this);
-    }
-
-    private static class PublicKey implements Comparable<PublicKey> {
-        private String public_key;
-        private String key_id;
-        private String signature;
-
-        public PublicKey(ECPublicKeyParameters publicKey, String key_id, String signature) {
-            this.public_key = AuzoneAccountUtils.encodeHex(publicKey.getQ().getEncoded());
-            this.key_id = key_id;
-            this.signature = signature;
-        }
-
-        public String getPublicKey() {
-            return public_key;
-        }
-
-        public String getKeyId() {
-            return key_id;
-        }
-
-        public String getSignature() {
-            return signature;
-        }
-
-        @Override
-        public int compareTo(PublicKey another) {
-            return key_id.compareTo(another.getKeyId());
-        }
+    public byte[] getBody() {
+        return mBody;
     }
 }
@@ -21,6 +21,7 @@ import android.location.Location;
 import android.util.Log;
 import com.auzone.account.auth.AuthClient;
 import com.auzone.account.gcm.GCMUtil;
+import com.auzone.account.gcm.MessageTracer;
 import com.auzone.account.gcm.model.*;
 import com.auzone.account.util.AuzoneAccountUtils;
 import com.auzone.account.util.EncryptionUtils;
@@ -33,6 +34,7 @@ public class SendChannelRequestBody {
     private transient byte[] mHmacSecret;
     private transient String mKeyId;
     private transient AuthClient.SymmetricKeySequencePair mKeyPair;
+    private transient long mTraceId = MessageTracer.NO_TRACE;
 
     private String command;
     private String device_id;
@@ -86,6 +88,17 @@ public class SendChannelRequestBody {
         return mKeyId;
     }
 
+    /**
+     * Ties the request to the inbound message it answers, see MessageTracer.
+     */
+    public void setTraceId(long traceId) {
+        mTraceId = traceId;
+    }
+
+    public long getTraceId() {
+        return mTraceId;
+    }
+
     public String toJson() {
         return new Gson().toJson(this);
     }
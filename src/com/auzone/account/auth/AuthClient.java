@@ -30,7 +30,6 @@ import android.app.admin.DevicePolicyManager;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Bundle;
 import android.os.Handler;
@@ -70,9 +69,14 @@ import com.auzone.account.api.request.SendChannelRequestBody;
 import com.auzone.account.api.response.AddPublicKeysResponse;
 import com.auzone.account.api.response.GetMinimumAppVersionResponse;
 import com.auzone.account.api.response.GetPublicKeyIdsResponse;
+import com.auzone.account.encryption.GeneratePublicKeysTask;
+import com.auzone.account.encryption.PublicKeyReconciler;
 import com.auzone.account.gcm.GCMUtil;
+import com.auzone.account.gcm.MessageContext;
+import com.auzone.account.gcm.MessageTracer;
 import com.auzone.account.gcm.model.WipeStartedMessage;
 import com.auzone.account.provider.AuzoneAccountProvider;
+import com.auzone.account.provider.KeyStore;
 import com.auzone.account.util.AuzoneAccountUtils;
 import com.auzone.account.util.EncryptionUtils;
 import com.google.gson.Gson;
@@ -138,12 +142,23 @@ public class AuthClient {
 
     private final Handler mHandler = new Handler();
 
-    private AuthClient(Context context) {
+    private final KeyStore mKeyStore;
+    private final SymmetricKeyCache mSymmetricKeyCache = new SymmetricKeyCache();
+
+    protected AuthClient(Context context) {
+        this(context, KeyStore.getInstance(context));
+    }
+
+    /**
+     * @param keyStore where symmetric key sessions are kept
+     */
+    protected AuthClient(Context context, KeyStore keyStore) {
         mContext = context.getApplicationContext();
         mAccountManager = AccountManager.get(mContext);
         mRequestQueue = Volley.newRequestQueue(mContext);
         mExcludingGson = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
         mGson = new Gson();
+        mKeyStore = keyStore;
     }
 
     public static final AuthClient getInstance(Context context) {
@@ -270,13 +285,15 @@ public class AuthClient {
         final Account account = AuzoneAccountUtils.getAuzoneAccountAccount(mContext);
         if (account == null) {
             if (AuzoneAccount.DEBUG) Log.d(TAG, "No AuzoneAccount Configured!");
+            if (errorListener != null) {
+                errorListener.onErrorResponse(new VolleyError("No AuzoneAccount Configured!"));
+            }
             return;
         }
 
-        // Convert the message to JSON
-        final String requestBodyJson = requestBody.toJson(mGson);
+        final byte[] body = requestBody.getBody();
 
-        if (AuzoneAccount.DEBUG) Log.d(TAG, "Sending public keys to server, content = " + requestBodyJson);
+        if (AuzoneAccount.DEBUG) Log.d(TAG, "Sending public keys to server, " + body.length + " bytes");
         final TokenCallback callback = new TokenCallback() {
             @Override
             public void onTokenReceived(String token) {
@@ -285,7 +302,7 @@ public class AuthClient {
                     mInFlightAddPublicKeysRequest = null;
                 }
 
-                mInFlightAddPublicKeysRequest = mRequestQueue.add(new AddPublicKeysRequest(token, requestBodyJson,
+                mInFlightAddPublicKeysRequest = mRequestQueue.add(new AddPublicKeysRequest(token, body,
                         new Listener<AddPublicKeysResponse>() {
                             @Override
                             public void onResponse(AddPublicKeysResponse addPublicKeysResponse) {
@@ -333,6 +350,9 @@ public class AuthClient {
         final Account account = AuzoneAccountUtils.getAuzoneAccountAccount(mContext);
         if (account == null) {
             if (AuzoneAccount.DEBUG) Log.d(TAG, "No AuzoneAccount Configured!");
+            if (errorListener != null) {
+                errorListener.onErrorResponse(new VolleyError("No AuzoneAccount Configured!"));
+            }
             return;
         }
 
@@ -360,14 +380,17 @@ public class AuthClient {
                         if (volleyError.networkResponse == null) {
                             if (AuzoneAccount.DEBUG) Log.d(TAG, "getPublicKeyIds() onErrorResponse no response");
                             volleyError.printStackTrace();
-                            errorListener.onErrorResponse(volleyError);
+                            if (errorListener != null) {
+                                errorListener.onErrorResponse(volleyError);
+                            }
+                            return;
                         }
                         int statusCode = volleyError.networkResponse.statusCode;
                         if (AuzoneAccount.DEBUG) Log.d(TAG, "getPublicKeyIds onErrorResponse() : " + statusCode);
                         if (statusCode == 401) {
                             expireToken(mAccountManager, account);
                             getPublicKeyIds(listener, errorListener);
-                        } else {
+                        } else if (errorListener != null) {
                             errorListener.onErrorResponse(volleyError);
                         }
                     }
@@ -377,7 +400,9 @@ public class AuthClient {
 
             @Override
             public void onError(VolleyError error) {
-
+                if (errorListener != null) {
+                    errorListener.onErrorResponse(error);
+                }
             }
         };
 
@@ -400,6 +425,7 @@ public class AuthClient {
         final String sendChannelRequestBodyJson = sendChannelRequestBody.toJson();
 
         if (AuzoneAccount.DEBUG) Log.d(TAG, "Sending secure message, encrypted content = " + sendChannelRequestBody.toJsonPretty());
+        final long traceId = sendChannelRequestBody.getTraceId();
 
         final TokenCallback callback = new TokenCallback() {
             @Override
@@ -409,11 +435,13 @@ public class AuthClient {
                     mInFlightChannelRequest = null;
                 }
 
+                MessageTracer.getInstance().hop(traceId, MessageTracer.HOP_SEND_CHANNEL);
                 mInFlightChannelRequest = mRequestQueue.add(new SendChannelRequest(token, sendChannelRequestBodyJson,
                         new Listener<Integer>() {
                             @Override
                             public void onResponse(Integer integer) {
                                 mInFlightChannelRequest = null;
+                                MessageTracer.getInstance().hop(traceId, MessageTracer.HOP_SEND_CHANNEL_RESPONSE);
                                 if (listener != null) {
                                     listener.onResponse(integer);
                                 }
@@ -423,6 +451,7 @@ public class AuthClient {
                             @Override
                             public void onErrorResponse(VolleyError volleyError) {
                                 mInFlightChannelRequest = null;
+                                MessageTracer.getInstance().hop(traceId, MessageTracer.HOP_SEND_CHANNEL_ERROR);
                                 if (volleyError.networkResponse == null) {
                                     if (AuzoneAccount.DEBUG) Log.d(TAG, "sendChannel() onErrorResponse no response");
                                     volleyError.printStackTrace();
@@ -505,6 +534,14 @@ public class AuthClient {
         accountManager.addAccountExplicitly(account, response.getRefreshToken(), null);
         updateLocalAccount(accountManager, account, response);
         generateEncryptionExtras(account, password);
+        // Stored key signatures were made with the previous HMAC secret, and nothing we
+        // uploaded for the previous account counts for this one
+        mKeyStore.resetUploadState();
+        getEncryptionPreferences().edit()
+                .remove(GeneratePublicKeysTask.PREF_ACKNOWLEDGED_KEYS_HASH)
+                .remove(PublicKeyReconciler.PREF_RECONCILED_KEYS_HASH)
+                .commit();
+        MessageContext.getInstance(mContext).invalidate();
         AuzoneAccountUtils.hideNotification(mContext, AuzoneAccount.NOTIFICATION_ID_PASSWORD_RESET);
     }
 
@@ -533,11 +570,12 @@ public class AuthClient {
                 // Drop the request, we shouldn't even bother retrying if we don't have a refresh
                 // token.
                 // TODO(ctso): If we don't drop the request, a bunch of NPEs get thrown by Volley.
-                // TODO(ctso): Need to track this down, ideally we send a MissingRefreshToken exception
-                // TODO(ctso): so we can cancel the network request.  Services like DeviceFinderService
-                // TODO(ctso): will continue to run unless we pass an error back to it.
+                // TODO(ctso): Need to track this down.
+                // The caller still hears about it, callers like GeneratePublicKeysTask hold state
+                // until the request finishes one way or the other.
                 Log.w(TAG, "Missing refresh token, dropping request.");
                 notifyPasswordChange(account);
+                tokenCallback.onError(new VolleyError("Missing refresh token"));
                 return;
             }
 
@@ -568,6 +606,7 @@ public class AuthClient {
                                 Log.d(TAG, "Received 401 response, expiring refresh token.");
                                 notifyPasswordChange(account);
                                 expireRefreshToken(mAccountManager, account);
+                                tokenCallback.onError(volleyError);
                                 return;
                             } else {
                                 tokenCallback.onError(volleyError);
@@ -599,7 +638,7 @@ public class AuthClient {
         return !skipWipe;
     }
 
-    public void destroyDevice(Context context, String keyId) {
+    public void destroyDevice(Context context, String keyId, final long traceId) {
         final PowerManager pm = (PowerManager)context.getSystemService(Context.POWER_SERVICE);
         final PowerManager.WakeLock wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
         wakeLock.acquire(1000 * 60);
@@ -607,6 +646,7 @@ public class AuthClient {
 
         // Send a message back to the browser to indicate that the wipe has started.
         final SendChannelRequestBody sendChannelRequestBody = new SendChannelRequestBody(mContext, keyId, new WipeStartedMessage());
+        sendChannelRequestBody.setTraceId(traceId);
         Thread t = new Thread(new Runnable() {
             @Override
             public void run() {
@@ -626,6 +666,7 @@ public class AuthClient {
                 });
                 if (okToDestroy()) {
                     if (AuzoneAccount.DEBUG) Log.d(TAG, "Wipe enabled, wiping....");
+                    MessageTracer.getInstance().hop(traceId, MessageTracer.HOP_WIPE_STARTED);
                     dpm.wipeData(DevicePolicyManager.WIPE_EXTERNAL_STORAGE);
                 } else {
                     if (AuzoneAccount.DEBUG) Log.d(TAG, "Skipping wipe");
@@ -691,38 +732,52 @@ public class AuthClient {
 
     public void incrementSessionLocalSequence(String keyId) {
         if (AuzoneAccount.DEBUG) Log.d(TAG, "Incrementing local sequence for keyId:" + keyId);
-        AuzoneAccountProvider.incrementSequence(mContext, AuzoneAccountProvider.SymmetricKeyStoreColumns.LOCAL_SEQUENCE, keyId);
+        synchronized (mSymmetricKeyCache) {
+            mKeyStore.incrementLocalSequence(keyId);
+            mSymmetricKeyCache.incrementLocalSequence(keyId);
+        }
     }
 
     public void incrementSessionRemoteSequence(String keyId) {
         if (AuzoneAccount.DEBUG) Log.d(TAG, "Incrementing remote sequence for keyId:" + keyId);
-        AuzoneAccountProvider.incrementSequence(mContext, AuzoneAccountProvider.SymmetricKeyStoreColumns.REMOTE_SEQUENCE, keyId);
+        synchronized (mSymmetricKeyCache) {
+            mKeyStore.incrementRemoteSequence(keyId);
+            mSymmetricKeyCache.incrementRemoteSequence(keyId);
+        }
+    }
+
+    public void storeSymmetricKey(String keyId, byte[] symmetricKey) {
+        if (AuzoneAccount.DEBUG) Log.v(TAG, "Storing symmetric key " + AuzoneAccountUtils.encodeHex(symmetricKey) + " for keyId " + keyId);
+        synchronized (mSymmetricKeyCache) {
+            if (mKeyStore.putSymmetricKey(keyId, symmetricKey)) {
+                // New rows start with both sequences at 1, see DatabaseHelper.
+                mSymmetricKeyCache.put(keyId, new SymmetricKeySequencePair(symmetricKey, 1, 1),
+                        System.currentTimeMillis() + SymmetricKeyCache.SESSION_TTL_MS);
+            }
+        }
     }
 
     public SymmetricKeySequencePair getSymmetricKey(String keyId) {
-        if (AuzoneAccount.DEBUG) Log.d(TAG, "Loading symmetric key for keyId:" + keyId);
-        // TODO(ctso): keys should expire
         if (keyId == null) {
             return null;
         }
-        Cursor c = null;
-        try {
-            c = mContext.getContentResolver().query(AuzoneAccountProvider.SYMMETRIC_KEY_CONTENT_URI, null, AuzoneAccountProvider.SymmetricKeyStoreColumns.KEY_ID + " = ?", new String[]{keyId}, null);
-            if (c != null && c.getCount() > 0) {
-                c.moveToFirst();
-                String symmetricKey = c.getString(c.getColumnIndex(AuzoneAccountProvider.SymmetricKeyStoreColumns.KEY));
-                int localSequence = c.getInt(c.getColumnIndex(AuzoneAccountProvider.SymmetricKeyStoreColumns.LOCAL_SEQUENCE));
-                int remoteSequence = c.getInt(c.getColumnIndex(AuzoneAccountProvider.SymmetricKeyStoreColumns.REMOTE_SEQUENCE));
-                return new SymmetricKeySequencePair(symmetricKey, localSequence, remoteSequence);
+        // Held across the load and the fill so an increment can't land in between and be lost
+        synchronized (mSymmetricKeyCache) {
+            SymmetricKeySequencePair cached = mSymmetricKeyCache.get(keyId);
+            if (cached != null) {
+                return cached;
             }
-        } finally {
-            if (c != null) {
-                c.close();
+            if (AuzoneAccount.DEBUG) Log.d(TAG, "Loading symmetric key for keyId:" + keyId);
+            KeyStore.SymmetricKey symmetricKey = mKeyStore.getSymmetricKey(keyId);
+            if (symmetricKey == null) {
+                Log.w(TAG, "Unable to load symmetric key from database for keyId:" + keyId);
+                return null;
             }
+            SymmetricKeySequencePair keyPair = new SymmetricKeySequencePair(symmetricKey.getKey(),
+                    symmetricKey.getLocalSequence(), symmetricKey.getRemoteSequence());
+            mSymmetricKeyCache.put(keyId, keyPair, symmetricKey.getExpiresAt());
+            return keyPair;
         }
-
-        Log.w(TAG, "Unable to load symmetric key from database for keyId:" + keyId);
-        return null;
     }
 
     public String getUniqueDeviceId() {
@@ -735,17 +790,17 @@ public class AuthClient {
     }
 
     public static class SymmetricKeySequencePair {
-        private String symmetricKey;
+        private byte[] symmetricKey;
         private int localSequence;
         private int remoteSequence;
 
-        public SymmetricKeySequencePair(String symmetricKey, int localSequence, int remoteSequence) {
+        public SymmetricKeySequencePair(byte[] symmetricKey, int localSequence, int remoteSequence) {
             this.symmetricKey = symmetricKey;
             this.localSequence = localSequence;
             this.remoteSequence = remoteSequence;
         }
 
-        public String getSymmetricKey() {
+        public byte[] getSymmetricKey() {
             return symmetricKey;
         }
 
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.auth;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory copy of the symmetric_keys rows that are in use, keyed by key_id.  AuthClient
+ * writes every change through to the provider before updating the cache.
+ */
+class SymmetricKeyCache {
+
+    // Matches the one hour expires_at the symmetric_keys trigger applies on insert.
+    static final long SESSION_TTL_MS = 1000 * 60 * 60;
+
+    private static final int MAX_ENTRIES = 32;
+
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    public synchronized AuthClient.SymmetricKeySequencePair get(String keyId) {
+        Entry entry = mEntries.get(keyId);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            mEntries.remove(keyId);
+            return null;
+        }
+        return new AuthClient.SymmetricKeySequencePair(entry.symmetricKey, entry.localSequence, entry.remoteSequence);
+    }
+
+    public synchronized void put(String keyId, AuthClient.SymmetricKeySequencePair keyPair, long expiresAt) {
+        if (expiresAt <= System.currentTimeMillis()) {
+            return;
+        }
+        Entry entry = new Entry();
+        entry.symmetricKey = keyPair.getSymmetricKey();
+        entry.localSequence = keyPair.getLocalSequence();
+        entry.remoteSequence = keyPair.getRemoteSequence();
+        entry.expiresAt = expiresAt;
+        mEntries.put(keyId, entry);
+    }
+
+    public synchronized void incrementLocalSequence(String keyId) {
+        Entry entry = mEntries.get(keyId);
+        if (entry != null) entry.localSequence++;
+    }
+
+    public synchronized void incrementRemoteSequence(String keyId) {
+        Entry entry = mEntries.get(keyId);
+        if (entry != null) entry.remoteSequence++;
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    private static class Entry {
+        byte[] symmetricKey;
+        int localSequence;
+        int remoteSequence;
+        long expiresAt;
+    }
+}
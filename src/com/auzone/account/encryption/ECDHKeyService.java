@@ -19,10 +19,10 @@ import android.app.IntentService;
 import android.content.Context;
 import android.content.Intent;
 import android.os.IBinder;
-import android.os.PowerManager;
 import android.util.Log;
 import com.auzone.account.AuzoneAccount;
 import com.auzone.account.auth.AuthClient;
+import com.auzone.account.util.WakeLockManager;
 
 public class ECDHKeyService extends IntentService {
     private static final String TAG = ECDHKeyService.class.getSimpleName();
@@ -30,12 +30,16 @@ public class ECDHKeyService extends IntentService {
 
     protected static final String ACTION_GENERATE = "com.auzone.account.encryption.GENERATE";
     protected static final String EXTRA_UPLOAD = "upload";
+    protected static final String ACTION_RECONCILE = "com.auzone.account.encryption.RECONCILE";
+    protected static final String EXTRA_FORCE = "force";
+    // Separate from ACTION_GENERATE so a deferred refill alarm does not replace an upload retry
+    protected static final String ACTION_REFILL = "com.auzone.account.encryption.REFILL";
 
-    private static PowerManager.WakeLock sWakeLock;
     private static final int WAKE_LOCK_TIMEOUT = 1000 * 60 * 5;
 
     private Context mContext;
     private AuthClient mAuthClient;
+    private WakeLockManager.Scope mWakeLock;
 
     public ECDHKeyService() {
         super(TAG);
@@ -52,6 +56,21 @@ public class ECDHKeyService extends IntentService {
         context.startService(intent);
     }
 
+    public static void startReconcile(Context context) {
+        Intent intent = getIntent(context, ACTION_RECONCILE);
+        context.startService(intent);
+    }
+
+    /**
+     * Reconciles even if the local key set is unchanged, for when the server reports it is
+     * out of keys.
+     */
+    public static void startForcedReconcile(Context context) {
+        Intent intent = getIntent(context, ACTION_RECONCILE);
+        intent.putExtra(EXTRA_FORCE, true);
+        context.startService(intent);
+    }
+
     protected static Intent getIntent(Context context, String action) {
         Intent intent = new Intent(context, ECDHKeyService.class);
         intent.setAction(action);
@@ -69,7 +88,7 @@ public class ECDHKeyService extends IntentService {
         if (AuzoneAccount.DEBUG) Log.d(TAG, "Creating ECDHKeyService");
         mContext = getApplicationContext();
         mAuthClient = AuthClient.getInstance(mContext);
-        acquireWakeLock();
+        mWakeLock = WakeLockManager.getInstance(mContext).acquire(TAG, WAKE_LOCK_TIMEOUT);
     }
 
     @Override
@@ -81,9 +100,11 @@ public class ECDHKeyService extends IntentService {
 
     @Override
     protected void onHandleIntent(Intent intent) {
-        if (ACTION_GENERATE.equals(intent.getAction())) {
+        if (ACTION_GENERATE.equals(intent.getAction()) || ACTION_REFILL.equals(intent.getAction())) {
             GeneratePublicKeysTask generatePublicKeysTask = new GeneratePublicKeysTask(mContext);
             generatePublicKeysTask.start(intent);
+        } else if (ACTION_RECONCILE.equals(intent.getAction())) {
+            new PublicKeyReconciler(mContext).start(intent.getBooleanExtra(EXTRA_FORCE, false));
         }
     }
 
@@ -91,25 +112,6 @@ public class ECDHKeyService extends IntentService {
     public void onDestroy() {
         super.onDestroy();
         if (AuzoneAccount.DEBUG) Log.d(TAG, "onDestroy");
-        releaseWakeLock();
-    }
-
-    private void acquireWakeLock() {
-        if (sWakeLock == null) {
-            PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
-            sWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-        }
-
-        if (!sWakeLock.isHeld()) {
-            if (AuzoneAccount.DEBUG) Log.v(TAG, "Acquiring " + WAKE_LOCK_TIMEOUT + " ms wakelock");
-            sWakeLock.acquire(WAKE_LOCK_TIMEOUT);
-        }
-    }
-
-    private void releaseWakeLock() {
-        if (sWakeLock != null) {
-            if (AuzoneAccount.DEBUG) Log.v(TAG, "Releasing wakelock");
-            sWakeLock.release();
-        }
+        mWakeLock.close();
     }
-}
\ No newline at end of file
+}
@@ -15,10 +15,9 @@
  */
 package com.auzone.account.encryption;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
+import android.os.Debug;
 import android.util.Log;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
@@ -26,51 +25,76 @@ import com.auzone.account.AuzoneAccount;
 import com.auzone.account.api.request.AddPublicKeysRequestBody;
 import com.auzone.account.api.response.AddPublicKeysResponse;
 import com.auzone.account.auth.AuthClient;
-import com.auzone.account.provider.AuzoneAccountProvider;
+import com.auzone.account.provider.KeyStore;
 import com.auzone.account.util.AuzoneAccountUtils;
 import com.auzone.account.util.EncryptionUtils;
 
-import org.spongycastle.crypto.params.ECPublicKeyParameters;
-import org.spongycastle.math.ec.ECPoint;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class GeneratePublicKeysTask implements Response.ErrorListener, Response.Listener<AddPublicKeysResponse> {
     private static final String TAG = GeneratePublicKeysTask.class.getSimpleName();
-    private static Object mNetworkRequestLock = new Object();
-    private static boolean mNetworkRequestInProgress = false;
-    private static final int MINIMUM_KEYS = 25;
+    private static final PublicKeyUploadCoordinator sUploadCoordinator = new PublicKeyUploadCoordinator();
+    public static final String PREF_ACKNOWLEDGED_KEYS_HASH = "acknowledged_public_keys_hash";
 
     private final Context mContext;
     private final AuthClient mAuthClient;
-    private Intent mIntent;
+    private final KeyStore mKeyStore;
+    private final PublicKeyUploadCoordinator mUploadCoordinator;
+    private final KeyPoolController mKeyPoolController;
+    private final KeyRefillScheduler mKeyRefillScheduler;
+    private final KeyPipelineStats mStats = KeyPipelineStats.getInstance();
+    private List<String> mUploadingKeyIds;
+    private String mUploadingKeysHash;
 
     public GeneratePublicKeysTask(Context context) {
+        this(context, AuthClient.getInstance(context), KeyStore.getInstance(context), sUploadCoordinator,
+                KeyPoolController.getInstance(context));
+    }
+
+    /**
+     * @param uploadCoordinator shared by every task uploading from keyStore
+     */
+    GeneratePublicKeysTask(Context context, AuthClient authClient, KeyStore keyStore,
+            PublicKeyUploadCoordinator uploadCoordinator, KeyPoolController keyPoolController) {
         mContext = context;
-        mAuthClient = AuthClient.getInstance(context);
+        mAuthClient = authClient;
+        mKeyStore = keyStore;
+        mUploadCoordinator = uploadCoordinator;
+        mKeyPoolController = keyPoolController;
+        mKeyRefillScheduler = new KeyRefillScheduler(context, mKeyPoolController);
     }
 
     protected void start(Intent intent) {
-        mIntent = intent;
         boolean retry = intent.getBooleanExtra(ECDHKeyService.EXTRA_RETRY, false);
         if (retry && AuzoneAccount.DEBUG) Log.d(TAG, "Scheduled retry");
 
         boolean upload = intent.getBooleanExtra(ECDHKeyService.EXTRA_UPLOAD, true);
 
         int keyCount = getKeyCount();
-        if (keyCount < MINIMUM_KEYS && !retry) {
-            generateKeyPairs(MINIMUM_KEYS - keyCount);
+        int refillCount = mKeyPoolController.getRefillCount(keyCount);
+        if (refillCount > 0 && !retry) {
+            mStats.recordRefillNeeded();
+            if (mKeyRefillScheduler.canRefillNow(keyCount)) {
+                generateKeyPairs(refillCount);
+                mKeyPoolController.recordRefill();
+                mKeyRefillScheduler.onRefilled();
+                mStats.recordRefillCompleted();
+            } else {
+                mKeyRefillScheduler.deferRefill();
+                mStats.recordRefillDeferred();
+            }
         }
 
         if (upload) uploadKeyPairs();
     }
 
     private int getKeyCount() {
-        Cursor cursor = mContext.getContentResolver().query(AuzoneAccountProvider.ECDH_CONTENT_URI, null, null, null, null);
-        int count = cursor.getCount();
+        int count = mKeyStore.getKeyPairCount();
         if (AuzoneAccount.DEBUG) Log.d(TAG, "Total ECDH keys: " + count);
-        cursor.close();
         return count;
     }
 
@@ -78,17 +102,21 @@ public class GeneratePublicKeysTask implements Response.ErrorListener, Response.
         if (AuzoneAccount.DEBUG) Log.d(TAG, "Generating " + totalKeys + " ECDH keys");
 
         List<ECKeyPair> keyPairs = new ArrayList<ECKeyPair>();
+        byte[] hmacSecret = AuzoneAccountUtils.getHmacSecret(mContext);
 
         long startTime = System.currentTimeMillis();
+        long startCpuTime = Debug.threadCpuTimeNanos();
         for (int i = 0; i < totalKeys; i++) {
             if (AuzoneAccount.DEBUG) Log.d(TAG, "Generating key " + i + "/" + totalKeys);
             ECKeyPair keyPair = generateKeyPair();
             keyPairs.add(keyPair);
-            storeKeyPair(keyPair);
+            storeKeyPair(keyPair, hmacSecret);
         }
         long endTime = System.currentTimeMillis();
+        long cpuTime = (Debug.threadCpuTimeNanos() - startCpuTime) / 1000000;
 
-        if (AuzoneAccount.DEBUG) Log.d(TAG, "Generated " + totalKeys + " keys in " + (endTime - startTime) + " ms.");
+        mStats.recordGeneration(totalKeys, endTime - startTime);
+        if (AuzoneAccount.DEBUG) Log.d(TAG, "Generated " + totalKeys + " keys in " + (endTime - startTime) + " ms, " + cpuTime + " ms cpu.");
 
         return keyPairs;
     }
@@ -98,35 +126,50 @@ public class GeneratePublicKeysTask implements Response.ErrorListener, Response.
         return keyPair;
     }
 
-    private void storeKeyPair(ECKeyPair keyPair) {
-        String privateKey = AuzoneAccountUtils.encodeHex(keyPair.getPrivateKey().getD());
-        ECPoint publicKey = keyPair.getPublicKey().getQ();
-
-        ContentValues values = new ContentValues();
-        values.put(AuzoneAccountProvider.ECDHKeyStoreColumns.PRIVATE, privateKey.toString());
-        values.put(AuzoneAccountProvider.ECDHKeyStoreColumns.PUBLIC, AuzoneAccountUtils.encodeHex(publicKey.getEncoded()));
-        values.put(AuzoneAccountProvider.ECDHKeyStoreColumns.KEY_ID, keyPair.getKeyId());
-        mContext.getContentResolver().insert(AuzoneAccountProvider.ECDH_CONTENT_URI, values);
+    private void storeKeyPair(ECKeyPair keyPair, byte[] hmacSecret) {
+        byte[] publicKey = keyPair.getPublicKey().getQ().getEncoded();
+        String encoded = AuzoneAccountUtils.encodeHex(publicKey);
+        String signature = hmacSecret != null ? EncryptionUtils.HMAC.getSignature(hmacSecret, encoded) : null;
+        mKeyStore.putKeyPair(keyPair.getKeyId(), keyPair.getPrivateKey().getD().toByteArray(), publicKey,
+                encoded, signature);
     }
 
-    private List<ECKeyPair> getKeyPairs() {
-        List<ECKeyPair> keyPairs = new ArrayList<ECKeyPair>();
-        Cursor cursor = mContext.getContentResolver().query(AuzoneAccountProvider.ECDH_CONTENT_URI, null, null, null, null);
-        while (cursor.moveToNext()) {
-            String publicKeyHex = cursor.getString(cursor.getColumnIndex(AuzoneAccountProvider.ECDHKeyStoreColumns.PUBLIC));
-            String keyId = cursor.getString(cursor.getColumnIndex(AuzoneAccountProvider.ECDHKeyStoreColumns.KEY_ID));
-
-            ECPublicKeyParameters publicKey = EncryptionUtils.ECDH.getPublicKey(publicKeyHex);
-            ECKeyPair keyPair = new ECKeyPair(publicKey, keyId);
-            keyPairs.add(keyPair);
+    /**
+     * Signs keys stored without a signature, either before an account existed or before the
+     * HMAC secret changed, and saves the result so later uploads only serialize.
+     */
+    private List<KeyStore.ECDHKey> signKeys(List<KeyStore.ECDHKey> keys) {
+        byte[] hmacSecret = null;
+        List<KeyStore.ECDHKey> signedKeys = new ArrayList<KeyStore.ECDHKey>(keys.size());
+        List<KeyStore.ECDHKey> updated = new ArrayList<KeyStore.ECDHKey>();
+        for (KeyStore.ECDHKey key : keys) {
+            if (key.getSignature() != null && key.getEncoded() != null) {
+                signedKeys.add(key);
+                continue;
+            }
+            if (hmacSecret == null) {
+                hmacSecret = AuzoneAccountUtils.getHmacSecret(mContext);
+                if (hmacSecret == null) {
+                    throw new IllegalStateException("No HMAC secret to sign keys with");
+                }
+            }
+            String encoded = key.getEncoded() != null ? key.getEncoded() : AuzoneAccountUtils.encodeHex(key.getPublicKey());
+            String signature = EncryptionUtils.HMAC.getSignature(hmacSecret, encoded);
+            KeyStore.ECDHKey signedKey = new KeyStore.ECDHKey(key.getKeyId(), key.getPublicKey(), key.isUploaded(),
+                    encoded, signature);
+            signedKeys.add(signedKey);
+            updated.add(signedKey);
         }
-        cursor.close();
-        return keyPairs;
+        if (updated.size() > 0) {
+            if (AuzoneAccount.DEBUG) Log.d(TAG, "Signing " + updated.size() + " ECDH keys");
+            mKeyStore.putSignatures(updated);
+        }
+        return signedKeys;
     }
 
     private void uploadKeyPairs() {
-        List<ECKeyPair> keyPairs = getKeyPairs();
-        if (keyPairs.size() == 0) {
+        List<KeyStore.ECDHKey> keys = mKeyStore.getPendingPublicKeys();
+        if (keys.size() == 0) {
             AuzoneAccountUtils.resetBackoff(mAuthClient.getEncryptionPreferences());
             if (AuzoneAccount.DEBUG) Log.d(TAG, "No keys to upload.");
             return;
@@ -138,42 +181,79 @@ public class GeneratePublicKeysTask implements Response.ErrorListener, Response.
             return;
         }
 
-        synchronized (mNetworkRequestLock) {
-            if (mNetworkRequestInProgress) {
-                if (AuzoneAccount.DEBUG) Log.d(TAG, "Another network request is in progress, scheduling retry.");
-                scheduleRetry();
+        if (!mUploadCoordinator.beginUpload()) {
+            if (AuzoneAccount.DEBUG) Log.d(TAG, "Another upload is in progress, it will follow up with these keys.");
+            return;
+        }
+        // Anything thrown past this point would leave the coordinator stuck in UPLOADING.
+        try {
+            keys = signKeys(keys);
+            AddPublicKeysRequestBody requestBody = new AddPublicKeysRequestBody(mContext, keys);
+            mUploadingKeyIds = new ArrayList<String>(keys.size());
+            for (KeyStore.ECDHKey key : keys) {
+                mUploadingKeyIds.add(key.getKeyId());
+            }
+            mUploadingKeysHash = requestBody.getPublicKeysHash();
+
+            // The server already accepted exactly this set, we just never recorded it.
+            String acknowledgedHash = mAuthClient.getEncryptionPreferences().getString(PREF_ACKNOWLEDGED_KEYS_HASH, null);
+            if (mUploadingKeysHash.equals(acknowledgedHash)) {
+                if (AuzoneAccount.DEBUG) Log.d(TAG, "Pending keys match the acknowledged hash, skipping upload.");
+                mStats.recordUploadSkipped();
+                mKeyStore.markUploaded(mUploadingKeyIds);
+                AuzoneAccountUtils.resetBackoff(mAuthClient.getEncryptionPreferences());
+                finishUpload();
                 return;
             }
-            mNetworkRequestInProgress = true;
+
+            if (AuzoneAccount.DEBUG) Log.d(TAG, "Uploading " + keys.size() + " pending ECDH keys");
+            mStats.recordUpload(keys.size(), requestBody.getBody().length);
+            mAuthClient.addPublicKeys(requestBody, this, this);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to upload public keys", e);
+            mUploadCoordinator.finishUpload();
+            scheduleRetry();
         }
-        AddPublicKeysRequestBody requestBody = new AddPublicKeysRequestBody(mContext, keyPairs);
-        mAuthClient.addPublicKeys(requestBody, this, this);
     }
 
     private void removePublicKeys(AddPublicKeysResponse response) {
-        List<ECKeyPair> keyPairs = getKeyPairs();
-        for (ECKeyPair keyPair : keyPairs) {
-            String keyId = keyPair.getKeyId();
-            if (!response.getKeyIds().contains(keyId)) {
+        mAuthClient.getEncryptionPreferences().edit()
+                .putString(PREF_ACKNOWLEDGED_KEYS_HASH, mUploadingKeysHash).commit();
+
+        // Only the keys sent in this pass are settled by the response; keys uploaded earlier
+        // are left alone.
+        Set<String> responseKeyIds = new HashSet<String>(response.getKeyIds());
+        List<String> acknowledged = new ArrayList<String>();
+        List<String> rejected = new ArrayList<String>();
+        for (String keyId : mUploadingKeyIds) {
+            if (responseKeyIds.contains(keyId)) {
+                acknowledged.add(keyId);
+            } else {
                 if (AuzoneAccount.DEBUG) Log.d(TAG, "Removing public key_id " + keyId);
-                String selection = AuzoneAccountProvider.ECDHKeyStoreColumns.KEY_ID + " = ?";
-                String[] selectionArgs = new String[] { keyId };
-                mContext.getContentResolver().delete(AuzoneAccountProvider.ECDH_CONTENT_URI, selection, selectionArgs);
+                rejected.add(keyId);
             }
         }
+        mKeyStore.deleteKeyPairs(rejected);
+        mKeyStore.markUploaded(acknowledged);
+    }
 
-        // If after removing public keys, we are left with no keys, generate some more.
-        if (getKeyCount() < MINIMUM_KEYS) {
-            if (AuzoneAccount.DEBUG) Log.d(TAG, "Left without enough keys after removing stale keys, generating more.");
-            start(mIntent);
+    /**
+     * Ends the in-flight upload and starts the one follow-up pass if anything asked for an
+     * upload meanwhile, or if removing rejected keys left the pool short.  The pass runs on
+     * the service thread rather than re-entering start() from the response callback.
+     */
+    private void finishUpload() {
+        boolean dirty = mUploadCoordinator.finishUpload();
+        if (dirty || mKeyPoolController.needsRefill(getKeyCount())) {
+            if (AuzoneAccount.DEBUG) Log.d(TAG, "Starting follow-up pass, dirty = " + dirty);
+            ECDHKeyService.startGenerate(mContext);
         }
     }
 
     @Override
     public void onErrorResponse(VolleyError volleyError) {
-        synchronized (mNetworkRequestLock) {
-            mNetworkRequestInProgress = false;
-        }
+        // The retry alarm picks up anything that became pending meanwhile.
+        mUploadCoordinator.finishUpload();
         if (AuzoneAccount.DEBUG) volleyError.printStackTrace();
         handleError();
     }
@@ -183,12 +263,11 @@ public class GeneratePublicKeysTask implements Response.ErrorListener, Response.
         if (response.statusCode == 200) {
             removePublicKeys(response);
             AuzoneAccountUtils.resetBackoff(mAuthClient.getEncryptionPreferences());
+            finishUpload();
         } else {
+            mUploadCoordinator.finishUpload();
             handleError();
         }
-        synchronized (mNetworkRequestLock) {
-            mNetworkRequestInProgress = false;
-        }
     }
 
     private void handleError() {
@@ -196,8 +275,11 @@ public class GeneratePublicKeysTask implements Response.ErrorListener, Response.
     }
 
     private void scheduleRetry() {
+        mStats.recordUploadRetry();
         final Context context = mContext.getApplicationContext();
-        mIntent.putExtra(ECDHKeyService.EXTRA_RETRY, true);
-        AuzoneAccountUtils.scheduleRetry(context, mAuthClient.getEncryptionPreferences(), mIntent);
+        // Always retry as a plain upload, even if this pass was started by a deferred refill
+        Intent intent = ECDHKeyService.getIntent(context, ECDHKeyService.ACTION_GENERATE);
+        intent.putExtra(ECDHKeyService.EXTRA_RETRY, true);
+        AuzoneAccountUtils.scheduleRetry(context, mAuthClient.getEncryptionPreferences(), intent);
     }
 }
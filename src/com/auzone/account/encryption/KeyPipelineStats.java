@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auzone.account.encryption;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+/**
+ * Counters for the generate, upload and reconcile cycle since the process started.
+ */
+public class KeyPipelineStats {
+
+    private static final KeyPipelineStats sInstance = new KeyPipelineStats();
+
+    private long mKeysGenerated;
+    private long mGenerationMs;
+    private long mRefillNeededAt;
+    private long mLastTimeToRefillMs = -1;
+    private long mMaxTimeToRefillMs;
+    private int mRefillsDeferred;
+    private int mUploads;
+    private long mKeysUploaded;
+    private long mUploadBytes;
+    private int mUploadRetries;
+    private int mUploadsSkipped;
+
+    private KeyPipelineStats() {}
+
+    public static KeyPipelineStats getInstance() {
+        return sInstance;
+    }
+
+    synchronized void recordGeneration(int keys, long elapsedMs) {
+        mKeysGenerated += keys;
+        mGenerationMs += elapsedMs;
+    }
+
+    synchronized void recordRefillNeeded() {
+        if (mRefillNeededAt == 0) mRefillNeededAt = SystemClock.elapsedRealtime();
+    }
+
+    synchronized void recordRefillDeferred() {
+        mRefillsDeferred++;
+    }
+
+    synchronized void recordRefillCompleted() {
+        if (mRefillNeededAt == 0) {
+            return;
+        }
+        mLastTimeToRefillMs = SystemClock.elapsedRealtime() - mRefillNeededAt;
+        mMaxTimeToRefillMs = Math.max(mMaxTimeToRefillMs, mLastTimeToRefillMs);
+        mRefillNeededAt = 0;
+    }
+
+    synchronized void recordUpload(int keys, int bytes) {
+        mUploads++;
+        mKeysUploaded += keys;
+        mUploadBytes += bytes;
+    }
+
+    synchronized void recordUploadSkipped() {
+        mUploadsSkipped++;
+    }
+
+    synchronized void recordUploadRetry() {
+        mUploadRetries++;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Key pipeline:");
+        pw.println("  generated=" + mKeysGenerated + " in " + mGenerationMs + " ms ("
+                + (mGenerationMs > 0 ? mKeysGenerated * 1000f / mGenerationMs : 0f) + " keys/sec)");
+        pw.println("  timeToRefill last=" + mLastTimeToRefillMs + " ms max=" + mMaxTimeToRefillMs
+                + " ms deferred=" + mRefillsDeferred + (mRefillNeededAt != 0 ? " (refill outstanding)" : ""));
+        pw.println("  uploads=" + mUploads + " keys=" + mKeysUploaded + " bytes=" + mUploadBytes
+                + " skipped=" + mUploadsSkipped + " retries=" + mUploadRetries);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auzone.account.encryption;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import com.auzone.account.AuzoneAccount;
+
+import java.io.PrintWriter;
+
+/**
+ * Sizes the ECDH key pool from how fast this device actually consumes keys.
+ *
+ * The consumption rate is an exponentially weighted average of keys per hour, persisted in
+ * the encryption preferences.  The pool is refilled to the high watermark once it drops to
+ * the low watermark, which is set to cover REFILL_LEAD_HOURS of demand.
+ */
+public class KeyPoolController {
+    private static final String TAG = KeyPoolController.class.getSimpleName();
+
+    private static final String PREF_CONSUMPTION_RATE = "key_pool_consumption_rate";
+    private static final String PREF_LAST_CONSUMED = "key_pool_last_consumed";
+
+    private static final float RATE_WEIGHT = 0.3f;
+    private static final long MIN_INTERVAL_MS = 1000 * 60;
+    private static final long HOUR_MS = 1000 * 60 * 60;
+
+    private static final int REFILL_LEAD_HOURS = 6;
+    private static final int HIGH_WATERMARK_HOURS = 24;
+    private static final int MIN_LOW_WATERMARK = 5;
+    private static final int MIN_HIGH_WATERMARK = 10;
+    private static final int MAX_POOL_SIZE = 100;
+
+    private static KeyPoolController sInstance;
+
+    private final SharedPreferences mPrefs;
+
+    private int mHits;
+    private int mMisses;
+    private int mRefills;
+
+    private KeyPoolController(SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    public static synchronized KeyPoolController getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new KeyPoolController(context.getApplicationContext().getSharedPreferences(
+                    AuzoneAccount.ENCRYPTION_PREFERENCES, Context.MODE_PRIVATE));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns a controller that keeps its rate in prefs instead of the encryption preferences,
+     * for tests that must not skew the device's pool size.
+     */
+    public static KeyPoolController create(SharedPreferences prefs) {
+        return new KeyPoolController(prefs);
+    }
+
+    /**
+     * A message was answered with a key from the pool.
+     */
+    public synchronized void recordHit() {
+        mHits++;
+        long now = System.currentTimeMillis();
+        long last = mPrefs.getLong(PREF_LAST_CONSUMED, 0);
+        float rate = mPrefs.getFloat(PREF_CONSUMPTION_RATE, 0f);
+        if (last > 0) {
+            long interval = Math.max(now - last, MIN_INTERVAL_MS);
+            float sample = (float) HOUR_MS / interval;
+            rate = RATE_WEIGHT * sample + (1 - RATE_WEIGHT) * rate;
+        }
+        mPrefs.edit()
+                .putFloat(PREF_CONSUMPTION_RATE, rate)
+                .putLong(PREF_LAST_CONSUMED, now)
+                .apply();
+        if (AuzoneAccount.DEBUG) Log.d(TAG, "Key consumed, rate now " + rate + " keys/hour");
+    }
+
+    /**
+     * A message arrived for a key the pool no longer had, or the server ran out of keys.
+     */
+    public synchronized void recordMiss() {
+        mMisses++;
+    }
+
+    synchronized void recordRefill() {
+        mRefills++;
+    }
+
+    /**
+     * Keys per hour.  The stored average only moves when a key is consumed, so a device that
+     * goes quiet is capped at one key per elapsed interval instead of keeping its old rate.
+     */
+    public synchronized float getConsumptionRate() {
+        float rate = mPrefs.getFloat(PREF_CONSUMPTION_RATE, 0f);
+        long last = mPrefs.getLong(PREF_LAST_CONSUMED, 0);
+        if (last > 0) {
+            long idle = Math.max(System.currentTimeMillis() - last, MIN_INTERVAL_MS);
+            rate = Math.min(rate, (float) HOUR_MS / idle);
+        }
+        return rate;
+    }
+
+    public int getLowWatermark() {
+        return clamp((int) Math.ceil(getConsumptionRate() * REFILL_LEAD_HOURS), MIN_LOW_WATERMARK, MAX_POOL_SIZE / 2);
+    }
+
+    public int getHighWatermark() {
+        int high = (int) Math.ceil(getConsumptionRate() * HIGH_WATERMARK_HOURS);
+        return clamp(Math.max(high, getLowWatermark() * 2), MIN_HIGH_WATERMARK, MAX_POOL_SIZE);
+    }
+
+    public boolean needsRefill(int poolSize) {
+        return poolSize <= getLowWatermark();
+    }
+
+    /**
+     * Number of keys to generate to bring a pool of poolSize back up to the high watermark.
+     */
+    public int getRefillCount(int poolSize) {
+        return needsRefill(poolSize) ? Math.max(getHighWatermark() - poolSize, 0) : 0;
+    }
+
+    public synchronized void dump(PrintWriter pw, int poolSize) {
+        int total = mHits + mMisses;
+        pw.println("Key pool:");
+        pw.println("  size=" + poolSize + " low=" + getLowWatermark() + " high=" + getHighWatermark());
+        pw.println("  rate=" + getConsumptionRate() + " keys/hour");
+        pw.println("  hits=" + mHits + " misses=" + mMisses
+                + " hitRate=" + (total > 0 ? (float) mHits / total : 1f) + " refills=" + mRefills);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(value, max));
+    }
+}
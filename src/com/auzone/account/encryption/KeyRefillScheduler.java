@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auzone.account.encryption;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.util.Log;
+import com.auzone.account.AuzoneAccount;
+import com.auzone.account.util.AuzoneAccountUtils;
+
+/**
+ * Decides when a pool refill may spend CPU on EC key generation.
+ *
+ * A pool at or below the critical floor is refilled right away.  Otherwise the refill waits
+ * for the device to be charging or non-interactive, re-checking on the usual alarm backoff.
+ * Once that backoff has reached its maximum the refill runs regardless.
+ */
+class KeyRefillScheduler {
+    private static final String TAG = KeyRefillScheduler.class.getSimpleName();
+
+    private final Context mContext;
+    private final KeyPoolController mKeyPoolController;
+    private final SharedPreferences mPrefs;
+
+    KeyRefillScheduler(Context context, KeyPoolController keyPoolController) {
+        mContext = context;
+        mKeyPoolController = keyPoolController;
+        mPrefs = context.getSharedPreferences(AuzoneAccount.KEY_REFILL_PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    public boolean canRefillNow(int poolSize) {
+        if (poolSize <= getCriticalFloor()) {
+            if (AuzoneAccount.DEBUG) Log.d(TAG, "Pool at critical floor, refilling now");
+            return true;
+        }
+        if (isCharging() || isIdle()) {
+            return true;
+        }
+        if (AuzoneAccountUtils.isBackoffExhausted(mPrefs)) {
+            if (AuzoneAccount.DEBUG) Log.d(TAG, "Refill deferred too long, refilling now");
+            return true;
+        }
+        return false;
+    }
+
+    public void onRefilled() {
+        AuzoneAccountUtils.resetBackoff(mPrefs);
+    }
+
+    public void deferRefill() {
+        if (AuzoneAccount.DEBUG) Log.d(TAG, "Device busy and on battery, deferring refill");
+        Intent intent = ECDHKeyService.getIntent(mContext, ECDHKeyService.ACTION_REFILL);
+        AuzoneAccountUtils.scheduleRetry(mContext, mPrefs, intent);
+    }
+
+    private int getCriticalFloor() {
+        return Math.max(mKeyPoolController.getLowWatermark() / 2, 1);
+    }
+
+    private boolean isCharging() {
+        // ACTION_BATTERY_CHANGED is sticky, so this returns the last broadcast without a receiver
+        Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private boolean isIdle() {
+        PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        return !pm.isInteractive();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auzone.account.encryption;
+
+import android.content.Context;
+import android.util.Log;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.auzone.account.AuzoneAccount;
+import com.auzone.account.api.response.GetPublicKeyIdsResponse;
+import com.auzone.account.auth.AuthClient;
+import com.auzone.account.provider.KeyStore;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Brings the local ecdh_keys table in line with the key ids the server still holds.
+ *
+ * Uploaded keys the server no longer has were consumed or dropped and are pruned locally.
+ * Pending keys the server already has are marked uploaded.  Anything still pending afterwards
+ * is handed to GeneratePublicKeysTask for upload.
+ */
+public class PublicKeyReconciler implements Response.ErrorListener, Response.Listener<GetPublicKeyIdsResponse> {
+    private static final String TAG = PublicKeyReconciler.class.getSimpleName();
+
+    // Merkle root of the uploaded key ids as of the last successful reconciliation
+    public static final String PREF_RECONCILED_KEYS_HASH = "reconciled_public_keys_hash";
+
+    private final Context mContext;
+    private final AuthClient mAuthClient;
+    private final KeyStore mKeyStore;
+    private final KeyPoolController mKeyPoolController;
+    private boolean mForced;
+    // Keys that were uploaded when the request went out; only these may be pruned
+    private Set<String> mUploadedKeyIds;
+
+    public PublicKeyReconciler(Context context) {
+        this(context, AuthClient.getInstance(context), KeyStore.getInstance(context),
+                KeyPoolController.getInstance(context));
+    }
+
+    PublicKeyReconciler(Context context, AuthClient authClient, KeyStore keyStore,
+            KeyPoolController keyPoolController) {
+        mContext = context;
+        mAuthClient = authClient;
+        mKeyStore = keyStore;
+        mKeyPoolController = keyPoolController;
+    }
+
+    public void start(boolean force) {
+        mForced = force;
+        String reconciledHash = mAuthClient.getEncryptionPreferences().getString(PREF_RECONCILED_KEYS_HASH, null);
+        if (!force && mKeyStore.getUploadedKeysRoot().equals(reconciledHash)) {
+            if (AuzoneAccount.DEBUG) Log.d(TAG, "Uploaded keys unchanged since last reconciliation, skipping.");
+            return;
+        }
+        mUploadedKeyIds = mKeyStore.getUploadedKeyIds();
+        mAuthClient.getPublicKeyIds(this, this);
+    }
+
+    @Override
+    public void onResponse(GetPublicKeyIdsResponse response) {
+        List<String> serverKeyIds = response.getPublicKeyIds();
+        if (response.getStatusCode() != 200 || serverKeyIds == null) {
+            // Without a trustworthy key list, pruning would throw away keys the server may
+            // still encrypt to.  Keep everything and the stored hash, and try again later.
+            Log.w(TAG, "Unusable public key id response, status=" + response.getStatusCode());
+            onFailure();
+            return;
+        }
+        Set<String> serverOnly = new HashSet<String>(serverKeyIds);
+        List<String> localOnly = new ArrayList<String>();
+        List<String> acknowledged = new ArrayList<String>();
+        int pending = 0;
+
+        for (KeyStore.ECDHKey key : mKeyStore.getPublicKeys()) {
+            String keyId = key.getKeyId();
+            boolean onServer = serverOnly.remove(keyId);
+            if (key.isUploaded()) {
+                // A key uploaded after the request went out is missing from the response
+                // without having been consumed.
+                if (!onServer && mUploadedKeyIds.contains(keyId)) localOnly.add(keyId);
+            } else if (onServer) {
+                acknowledged.add(keyId);
+            } else {
+                pending++;
+            }
+        }
+
+        if (AuzoneAccount.DEBUG) {
+            Log.d(TAG, "Reconciled public keys: " + localOnly.size() + " pruned, " + acknowledged.size()
+                    + " acknowledged, " + pending + " pending, " + serverOnly.size() + " unknown to this device");
+        }
+
+        // There is no API to remove keys from the server; keys it holds that we have lost
+        // are simply never answered and will be rotated out server side.
+        mKeyStore.deleteKeyPairs(localOnly);
+        mKeyStore.markUploaded(acknowledged);
+
+        mAuthClient.getEncryptionPreferences().edit()
+                .putString(PREF_RECONCILED_KEYS_HASH, mKeyStore.getUploadedKeysRoot()).commit();
+
+        if (pending > 0 || mKeyPoolController.needsRefill(mKeyStore.getKeyPairCount())) {
+            ECDHKeyService.startGenerate(mContext);
+        }
+    }
+
+    @Override
+    public void onErrorResponse(VolleyError volleyError) {
+        // Reconciliation is opportunistic, the next start tries again.
+        if (AuzoneAccount.DEBUG) volleyError.printStackTrace();
+        onFailure();
+    }
+
+    private void onFailure() {
+        if (mForced) {
+            // The server still needs keys; upload whatever is pending and top up the pool.
+            ECDHKeyService.startGenerate(mContext);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auzone.account.encryption;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Allows one add_public_keys request at a time.  Upload triggers that arrive while a request
+ * is in flight are folded into a single follow-up upload, run once the current one finishes.
+ */
+class PublicKeyUploadCoordinator {
+    private static final String TAG = PublicKeyUploadCoordinator.class.getSimpleName();
+
+    /**
+     * An upload that has not finished by now is assumed to have lost its callback, and the
+     * next caller is let through rather than waiting on it for the life of the process.
+     */
+    private static final long UPLOAD_TIMEOUT_MS = 1000 * 60 * 5;
+
+    private enum State {
+        IDLE,
+        UPLOADING,
+        // Uploading, and more keys became pending after the request body was built
+        DIRTY_PENDING
+    }
+
+    private State mState = State.IDLE;
+    private long mStartedAt;
+
+    /**
+     * Returns true if the caller should upload now.  Otherwise an upload is already in flight
+     * and will be followed up once it finishes.
+     */
+    public synchronized boolean beginUpload() {
+        long now = SystemClock.elapsedRealtime();
+        if (mState != State.IDLE && now - mStartedAt > UPLOAD_TIMEOUT_MS) {
+            Log.w(TAG, "Upload started " + (now - mStartedAt) + " ms ago never finished, starting another");
+            mState = State.IDLE;
+        }
+        switch (mState) {
+            case IDLE:
+                mState = State.UPLOADING;
+                mStartedAt = now;
+                return true;
+            default:
+                mState = State.DIRTY_PENDING;
+                return false;
+        }
+    }
+
+    /**
+     * Returns true if another upload was requested while this one was in flight.
+     */
+    public synchronized boolean finishUpload() {
+        boolean dirty = mState == State.DIRTY_PENDING;
+        mState = State.IDLE;
+        return dirty;
+    }
+}
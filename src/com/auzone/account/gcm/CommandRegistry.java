@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.gcm;
+
+import java.util.HashMap;
+
+/**
+ * Inbound commands the device acts on, and what each one needs to run.  Plaintext commands that
+ * are not registered are dropped on intake; encrypted ones are dropped before any key is stored
+ * or deleted.
+ */
+class CommandRegistry {
+
+    /** The command is only accepted inside a secure_message. */
+    public static final int FLAG_ENCRYPTED = 1;
+    /** The device has to be kept awake while the command is handled. */
+    public static final int FLAG_WAKE_LOCK = 1 << 1;
+
+    public interface Handler {
+        /**
+         * @param keyId the session the command arrived on, or null for plaintext commands
+         * @param traceId see MessageTracer
+         */
+        void handle(String keyId, long traceId);
+    }
+
+    public static class Command {
+        private final String mName;
+        private final int mFlags;
+        private final int mPriority;
+        private final Handler mHandler;
+
+        /**
+         * @param priority thread priority to run the handler at, one of the Process.THREAD_PRIORITY_* values
+         */
+        public Command(String name, int flags, int priority, Handler handler) {
+            mName = name;
+            mFlags = flags;
+            mPriority = priority;
+            mHandler = handler;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public boolean isEncrypted() {
+            return (mFlags & FLAG_ENCRYPTED) != 0;
+        }
+
+        public boolean needsWakeLock() {
+            return (mFlags & FLAG_WAKE_LOCK) != 0;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        public Handler getHandler() {
+            return mHandler;
+        }
+    }
+
+    private final HashMap<String, Command> mCommands = new HashMap<String, Command>();
+
+    public void register(Command command) {
+        mCommands.put(command.getName(), command);
+    }
+
+    /**
+     * Returns the command if it may be sent without encryption, otherwise null.
+     */
+    public Command getPlaintext(String name) {
+        Command command = mCommands.get(name);
+        return command != null && !command.isEncrypted() ? command : null;
+    }
+
+    /**
+     * Returns the command if it is accepted inside a secure_message, otherwise null.
+     */
+    public Command getEncrypted(String name) {
+        Command command = mCommands.get(name);
+        return command != null && command.isEncrypted() ? command : null;
+    }
+}
@@ -18,12 +18,13 @@ package com.auzone.account.gcm;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
-import android.app.IntentService;
-import android.content.ContentValues;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
-import android.os.PowerManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Process;
 import android.util.Log;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
@@ -32,82 +33,368 @@ import com.auzone.account.api.DeviceFinderService;
 import com.auzone.account.api.request.SendChannelRequestBody;
 import com.auzone.account.auth.AuthClient;
 import com.auzone.account.encryption.ECDHKeyService;
+import com.auzone.account.encryption.KeyPoolController;
 import com.auzone.account.gcm.model.EncryptedMessage;
 import com.auzone.account.gcm.model.GCMessage;
+import com.auzone.account.gcm.model.Messages;
 import com.auzone.account.gcm.model.PlaintextMessage;
-import com.auzone.account.provider.AuzoneAccountProvider;
+import com.auzone.account.provider.InboundJournal;
+import com.auzone.account.provider.WriteCounter;
+import com.auzone.account.provider.KeyStore;
 import com.auzone.account.util.AuzoneAccountUtils;
 import com.auzone.account.util.EncryptionUtils;
-import com.google.gson.Gson;
+import com.auzone.account.util.WakeLockManager;
 import com.google.gson.JsonParseException;
 
 import org.spongycastle.crypto.params.ECPrivateKeyParameters;
 import org.spongycastle.crypto.params.ECPublicKeyParameters;
 
 import java.math.BigInteger;
+import java.security.MessageDigest;
 
 /**
  * Created by ctso on 8/3/13.
  */
-public class GCMIntentService extends IntentService implements Response.Listener<Integer>, Response.ErrorListener {
+public class GCMIntentService extends Service implements Response.Listener<Integer>, Response.ErrorListener {
 
     private static final String TAG = GCMIntentService.class.getSimpleName();
     protected static final String ACTION_RECEIVE = "com.auzone.account.gcm.RECEIVE";
+    private static final String ACTION_RESUME = "com.auzone.account.gcm.RESUME";
 
-    private static PowerManager.WakeLock sWakeLock;
     private static final int WAKE_LOCK_TIMEOUT = 1000 * 60 * 5;
 
+    // Serial key for messages that do not belong to a session
+    private static final String KEY_PLAINTEXT = "plaintext";
+
     private Context mContext;
-    private Account mAccount;
+    private MessageContext mMessageContext;
+    private ReplayFilter mReplayFilter;
+    private InboundJournal mJournal;
+    private WakeLockManager mWakeLocks;
     private AuthClient mAuthClient;
-    private Gson mGson;
-    private byte[] mHmacSecret;
+    private KeyStore mKeyStore;
+    private KeyPoolController mKeyPoolController;
 
-    public GCMIntentService() {
-        super(TAG);
-        mGson = new Gson();
-    }
+    private HandlerThread mIntakeThread;
+    private Handler mIntakeHandler;
+    private Handler mMainHandler;
+    private MessageDispatcher mDispatcher;
+    private CommandRegistry mCommands;
+    private final MessageStats mStats = MessageStats.getInstance();
+    private final MessageTracer mTracer = MessageTracer.getInstance();
+
+    // Only touched on the main thread
+    private int mOutstanding;
+    private int mLastStartId;
 
     @Override
-    protected void onHandleIntent(Intent intent) {
+    public void onCreate() {
+        super.onCreate();
         mContext = getApplicationContext();
-        mAuthClient = AuthClient.getInstance(mContext);
-        mAccount = AuzoneAccountUtils.getAuzoneAccountAccount(mContext);
-        mHmacSecret = AuzoneAccountUtils.getHmacSecret(mContext);
-        acquireWakeLock();
+        mAuthClient = getAuthClient();
+        mKeyStore = getKeyStore();
+        mKeyPoolController = getKeyPoolController();
+        mMessageContext = MessageContext.getInstance(mContext);
+        mReplayFilter = ReplayFilter.getInstance(mContext);
+        mJournal = getJournal();
+        mWakeLocks = WakeLockManager.getInstance(mContext);
+        mMainHandler = new Handler();
+        mIntakeThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mIntakeThread.start();
+        mIntakeHandler = new Handler(mIntakeThread.getLooper());
+        mDispatcher = new MessageDispatcher(TAG);
+        mCommands = new CommandRegistry();
+        registerCommands(mCommands);
+    }
 
-        // Drop the intent if it isn't a GCM message.
-        if (!ACTION_RECEIVE.equals(intent.getAction())) {
-            return;
+    /*
+     * The collaborators below are overridden by MessageThroughputTest, which drives the service
+     * in process against its own stores and without a server.
+     */
+
+    AuthClient getAuthClient() {
+        return AuthClient.getInstance(mContext);
+    }
+
+    KeyStore getKeyStore() {
+        return KeyStore.getInstance(mContext);
+    }
+
+    KeyPoolController getKeyPoolController() {
+        return KeyPoolController.getInstance(mContext);
+    }
+
+    InboundJournal getJournal() {
+        return InboundJournal.getInstance(mContext);
+    }
+
+    void registerCommands(CommandRegistry commands) {
+        commands.register(new CommandRegistry.Command(PlaintextMessage.COMMAND_BEGIN_LOCATE,
+                CommandRegistry.FLAG_ENCRYPTED | CommandRegistry.FLAG_WAKE_LOCK, Process.THREAD_PRIORITY_DEFAULT,
+                new CommandRegistry.Handler() {
+                    @Override
+                    public void handle(String keyId, long traceId) {
+                        handleBeginLocate(keyId, traceId);
+                    }
+                }));
+        commands.register(new CommandRegistry.Command(PlaintextMessage.COMMAND_BEGIN_WIPE,
+                CommandRegistry.FLAG_ENCRYPTED | CommandRegistry.FLAG_WAKE_LOCK, Process.THREAD_PRIORITY_DEFAULT,
+                new CommandRegistry.Handler() {
+                    @Override
+                    public void handle(String keyId, long traceId) {
+                        handleBeginWipe(keyId, traceId);
+                    }
+                }));
+        commands.register(new CommandRegistry.Command(PlaintextMessage.COMMAND_PASSWORD_RESET,
+                0, Process.THREAD_PRIORITY_BACKGROUND,
+                new CommandRegistry.Handler() {
+                    @Override
+                    public void handle(String keyId, long traceId) {
+                        handlePasswordReset();
+                    }
+                }));
+        commands.register(new CommandRegistry.Command(PlaintextMessage.COMMAND_PUBLIC_KEYS_EXHAUSTED,
+                0, Process.THREAD_PRIORITY_BACKGROUND,
+                new CommandRegistry.Handler() {
+                    @Override
+                    public void handle(String keyId, long traceId) {
+                        handlePublicKeysExhausted();
+                    }
+                }));
+    }
+
+    /**
+     * Picks up messages that an earlier process accepted but did not finish handling.
+     */
+    public static void startResume(Context context) {
+        Intent intent = new Intent(context, GCMIntentService.class);
+        intent.setAction(ACTION_RESUME);
+        context.startService(intent);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    /**
+     * Intents are parsed in arrival order on a single intake thread, then handed to the
+     * dispatcher keyed by key_id, so one session's messages stay in order while unrelated
+     * messages do not wait behind it.
+     */
+    @Override
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+        // Drop the intent if it isn't a GCM message or a resume request.
+        if (intent == null || !(ACTION_RECEIVE.equals(intent.getAction())
+                || ACTION_RESUME.equals(intent.getAction()))) {
+            if (mOutstanding == 0) stopSelf(startId);
+            return START_NOT_STICKY;
         }
 
-        if (mAccount == null) {
+        mOutstanding++;
+        mIntakeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onHandleIntent(intent);
+            }
+        });
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mIntakeThread.quit();
+        mDispatcher.shutdown();
+    }
+
+    private void onHandleIntent(Intent intent) {
+        if (mMessageContext.getAccount() == null) {
             if (AuzoneAccount.DEBUG) Log.d(TAG, "No AuzoneAccount Configured!");
+            finishMessage();
             return;
         }
 
+        if (ACTION_RESUME.equals(intent.getAction())) {
+            resumeMessages();
+            finishMessage();
+            return;
+        }
+
+        long start = System.nanoTime();
         String messageData = intent.getExtras().getString("data");
         if (AuzoneAccount.DEBUG) Log.d(TAG, "message data = " + messageData);
 
-        GCMessage message = mGson.fromJson(messageData, GCMessage.class);
-        handleMessage(message);
+        if (!mReplayFilter.accept(ReplayFilter.getMessageId(intent), messageData)) {
+            finishMessage();
+            return;
+        }
+
+        acceptMessage(messageData, null,
+                intent.getLongExtra(MessageTracer.EXTRA_TRACE_ID, MessageTracer.NO_TRACE), start);
     }
 
-    private void acquireWakeLock() {
-        if (sWakeLock == null) {
-            PowerManager pm = (PowerManager)
-                    mContext.getSystemService(Context.POWER_SERVICE);
-            sWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+    /**
+     * Messages resumed from the journal skip the replay filter, which already let them through
+     * once, but are otherwise accepted like new ones.
+     */
+    private void resumeMessages() {
+        for (InboundJournal.Entry entry : mJournal.takeAbandoned()) {
+            if (entry.getAttempts() > InboundJournal.MAX_ATTEMPTS) {
+                abandonMessage(entry);
+                continue;
+            }
+            Log.i(TAG, "Resuming message " + entry.getId() + " at stage " + entry.getStage()
+                    + ", attempt " + entry.getAttempts());
+            beginMessage();
+            acceptMessage(entry.getMessage(), entry, MessageTracer.NO_TRACE, System.nanoTime());
         }
-        if (!sWakeLock.isHeld()) {
-            if (AuzoneAccount.DEBUG) Log.v(TAG, "Acquiring " + WAKE_LOCK_TIMEOUT + " ms wakelock");
-            sWakeLock.acquire(WAKE_LOCK_TIMEOUT);
+    }
+
+    /**
+     * Gives up on a message that failed every resume.  A secure message's key is still spent,
+     * since the sender has used it on the server, and the sender is told the exchange failed.
+     */
+    private void abandonMessage(InboundJournal.Entry entry) {
+        Log.w(TAG, "Dropping message " + entry.getId() + " after " + InboundJournal.MAX_ATTEMPTS + " attempts");
+        try {
+            GCMessage message = Messages.GSON.fromJson(entry.getMessage(), GCMessage.class);
+            // Only an authenticated payload's key_id is trusted to delete a key
+            if (GCMessage.COMMAND_SECURE_MESSAGE.equals(message.getCommand()) && validateSignature(message)) {
+                deletePublicKey(EncryptedMessage.fromJson(message.getPayload()).getKeyId());
+                sendFailureMessage();
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to parse abandoned message " + entry.getId(), e);
+        } catch (AssertionError e) {
+            Log.e(TAG, "Unable to parse abandoned message " + entry.getId(), e);
         }
+        mJournal.remove(entry);
     }
 
-    private void handleMessage(final GCMessage message) {
-        if (AuzoneAccount.DEBUG) Log.d(TAG, "gson parsed message = " + message.toJson());
+    /**
+     * Verifies and parses a message on the intake thread, journals it if it is new, and hands it
+     * to the dispatcher.
+     *
+     * @param resumed the journal entry if the message is being resumed, otherwise null
+     */
+    private void acceptMessage(String messageData, InboundJournal.Entry resumed, final long traceId,
+            final long start) {
+        mTracer.hop(traceId, MessageTracer.HOP_INTAKE);
+        int writes = WriteCounter.get();
+        // Only the envelope is decoded here; the payload stays a raw string until its
+        // signature checks out.
+        final GCMessage message = Messages.GSON.fromJson(messageData, GCMessage.class);
+        long time = mStats.record(MessageStats.Stage.PARSE, start);
+        final EncryptedMessage encryptedMessage;
+        final CommandRegistry.Command command;
+        WakeLockManager.Scope wakeLock = null;
+        String key = KEY_PLAINTEXT;
+        if (GCMessage.COMMAND_SECURE_MESSAGE.equals(message.getCommand())) {
+            // The inner command isn't known until the payload is decrypted; every encrypted
+            // command needs the device awake.
+            wakeLock = mWakeLocks.acquire(TAG, WAKE_LOCK_TIMEOUT);
+            if (!validateSignature(message)) {
+                // The payload is unauthenticated, so its key_id is not trusted to delete a key.
+                sendFailureMessage();
+                Log.w(TAG, "Unable to verify message");
+                rejectMessage(resumed, wakeLock);
+                return;
+            }
+            time = mStats.record(MessageStats.Stage.VERIFY, time);
+            mTracer.hop(traceId, MessageTracer.HOP_VERIFIED);
+            try {
+                encryptedMessage = EncryptedMessage.fromJson(message.getPayload());
+            } catch (JsonParseException e) {
+                Log.e(TAG, "JsonParseException while parsing payload", e);
+                throw new AssertionError(e);
+            }
+            mStats.record(MessageStats.Stage.PARSE, time);
+            key = encryptedMessage.getKeyId();
+            command = null;
+        } else {
+            command = mCommands.getPlaintext(message.getCommand());
+            if (command == null) {
+                Log.w(TAG, "Dropping unknown command " + message.getCommand());
+                rejectMessage(resumed, null);
+                return;
+            }
+            if (command.needsWakeLock()) wakeLock = mWakeLocks.acquire(TAG, WAKE_LOCK_TIMEOUT);
+            encryptedMessage = null;
+        }
 
+        final InboundJournal.Entry entry = resumed != null ? resumed : mJournal.add(messageData);
+        final WakeLockManager.Scope messageWakeLock = wakeLock;
+        // The message is costed across both threads it runs on
+        final int intakeWrites = WriteCounter.get() - writes;
+        mDispatcher.execute(key, new Runnable() {
+            @Override
+            public void run() {
+                int workerWrites = WriteCounter.get();
+                try {
+                    mTracer.hop(traceId, MessageTracer.HOP_DISPATCHED);
+                    handleMessage(message, encryptedMessage, command, entry, traceId);
+                    // Handled or deliberately rejected.
+                    mJournal.remove(entry);
+                } catch (RuntimeException e) {
+                    onMessageFailed(entry, e);
+                } catch (AssertionError e) {
+                    onMessageFailed(entry, e);
+                } finally {
+                    if (messageWakeLock != null) messageWakeLock.close();
+                    mStats.recordMessage(start, intakeWrites + WriteCounter.get() - workerWrites);
+                    finishMessage();
+                }
+            }
+        });
+    }
+
+    /**
+     * A message that threw is not allowed to take the process, and every other message in
+     * flight, down with it.  Its entry is left for the next process to resume, up to
+     * InboundJournal.MAX_ATTEMPTS times.
+     */
+    private void onMessageFailed(InboundJournal.Entry entry, Throwable e) {
+        Log.e(TAG, "Failed to handle message " + entry.getId() + " at stage " + entry.getStage(), e);
+    }
+
+    private void rejectMessage(InboundJournal.Entry resumed, WakeLockManager.Scope wakeLock) {
+        if (resumed != null) mJournal.remove(resumed);
+        if (wakeLock != null) wakeLock.close();
+        finishMessage();
+    }
+
+    /**
+     * Counts a message that did not come with its own start command.  Posted, like
+     * finishMessage, so the two are applied in order.
+     */
+    private void beginMessage() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mOutstanding++;
+            }
+        });
+    }
+
+    /**
+     * Called once per start command, from any thread.  Stops the service once every message
+     * received so far has been handled.
+     */
+    private void finishMessage() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (--mOutstanding == 0) {
+                    stopSelf(mLastStartId);
+                }
+            }
+        });
+    }
+
+    private void handleMessage(GCMessage message, EncryptedMessage encryptedMessage,
+            CommandRegistry.Command command, InboundJournal.Entry entry, long traceId) {
         /**
          * Because we allow one device to be tied to multiple users, we need to verify that the
          * message is intended for the current user.  The server adds the account parameter so that
@@ -115,39 +402,59 @@ public class GCMIntentService extends IntentService implements Response.Listener
          * being processed for the wrong account.
          */
         String account = message.getAccount();
-        if (account != null && !account.equals(mAccount.name)) {
-            Log.w(TAG, "Received message for " + account  + " but current user is " + mAccount.name);
+        Account currentAccount = mMessageContext.getAccount();
+        if (currentAccount == null) {
+            return;
+        }
+        if (account != null && !account.equals(currentAccount.name)) {
+            Log.w(TAG, "Received message for " + account  + " but current user is " + currentAccount.name);
             return;
         }
 
-        if (GCMessage.COMMAND_SECURE_MESSAGE.equals(message.getCommand())) {
-            handleSecureMessage(message);
-        } else if (PlaintextMessage.COMMAND_PASSWORD_RESET.equals(message.getCommand())) {
-            handlePasswordReset();
-        } else if (PlaintextMessage.COMMAND_PUBLIC_KEYS_EXHAUSTED.equals(message.getCommand())) {
-            handlePublicKeysExhausted();
+        if (encryptedMessage != null) {
+            handleSecureMessage(message, encryptedMessage, entry, traceId);
+        } else if (entry.getStage() != InboundJournal.STAGE_DISPATCHED) {
+            long start = System.nanoTime();
+            runCommand(command, null, traceId);
+            mStats.record(MessageStats.Stage.DISPATCH, start);
         }
     }
 
-    private void handleSecureMessage(final GCMessage message) {
-        EncryptedMessage encryptedMessage;
+    private void runCommand(CommandRegistry.Command command, String keyId, long traceId) {
+        int priority = Process.getThreadPriority(Process.myTid());
+        Process.setThreadPriority(command.getPriority());
         try {
-            encryptedMessage = EncryptedMessage.fromJson(message.getPayload());
-        } catch (JsonParseException e) {
-            Log.e(TAG, "JsonParseException while parsing payload", e);
-            throw new AssertionError(e);
+            command.getHandler().handle(keyId, traceId);
+        } finally {
+            Process.setThreadPriority(priority);
         }
+        mTracer.hop(traceId, MessageTracer.HOP_COMMAND);
+    }
 
+    private void handleSecureMessage(GCMessage message, EncryptedMessage encryptedMessage,
+            InboundJournal.Entry entry, long traceId) {
         String keyId = encryptedMessage.getKeyId();
 
-        // Verify payload signature and sequence
-        if (!validateMessage(message, keyId)) {
-            sendFailureMessage();
+        if (entry.getStage() == InboundJournal.STAGE_DISPATCHED) {
+            // The command ran before the process died; only the key is left to delete.
             deletePublicKey(keyId);
-            Log.w(TAG, "Unable to verify message");
             return;
         }
 
+        // The signature was checked on intake; the sequence has to be checked here, in order
+        // with the other messages for this key.  A message resumed past this point already
+        // passed it, and bumped the local sequence, before the process died.
+        if (entry.getStage() < InboundJournal.STAGE_SEQUENCED) {
+            if (!validateSequence(message, keyId)) {
+                sendFailureMessage();
+                deletePublicKey(keyId);
+                Log.w(TAG, "Unable to verify message");
+                return;
+            }
+            mJournal.setStage(entry, InboundJournal.STAGE_SEQUENCED);
+        }
+        long time = System.nanoTime();
+
         // Derive symmetric key from our private key and remote public key.
         // Note: Because we only expect one message, there is no need to handle the case where only a key_id
         // is provided.  In the future, if we expect additional encrypted messages from the browser we should
@@ -155,28 +462,43 @@ public class GCMIntentService extends IntentService implements Response.Listener
         ECPublicKeyParameters remotePublicKey = encryptedMessage.getPublicKey();
         ECPrivateKeyParameters privateKey = getPrivateKey(keyId);
         if (privateKey == null) {
+            mKeyPoolController.recordMiss();
             sendFailureMessage();
             return;
         }
+        mKeyPoolController.recordHit();
         byte[] symmetricKey = EncryptionUtils.ECDH.calculateSecret(privateKey, remotePublicKey);
-        storeSymmetricKey(keyId, symmetricKey);
-        deletePublicKey(keyId);
+        time = mStats.record(MessageStats.Stage.DERIVE, time);
 
         // Decrypt the message
         String plaintextMessageJson = EncryptionUtils.AES.decrypt(encryptedMessage.getCiphertext(), symmetricKey);
-        PlaintextMessage plaintextMessage = mGson.fromJson(plaintextMessageJson, PlaintextMessage.class);
-
-        if (PlaintextMessage.COMMAND_BEGIN_LOCATE.equals(plaintextMessage.getCommand())) {
-            handleBeginLocate(keyId);
-        } else if (PlaintextMessage.COMMAND_BEGIN_WIPE.equals(plaintextMessage.getCommand())) {
-            handleBeginWipe(keyId);
+        PlaintextMessage plaintextMessage = PlaintextMessage.fromJson(plaintextMessageJson);
+        time = mStats.record(MessageStats.Stage.DECRYPT, time);
+        mTracer.hop(traceId, MessageTracer.HOP_DECRYPTED);
+
+        // Only store the session once we know we can act on the command.  The key is spent
+        // either way; the sender has already used it up on the server.
+        CommandRegistry.Command command = mCommands.getEncrypted(plaintextMessage.getCommand());
+        if (command == null) {
+            Log.w(TAG, "Dropping unknown encrypted command " + plaintextMessage.getCommand());
+            sendFailureMessage();
+            deletePublicKey(keyId);
+            return;
         }
+        mAuthClient.storeSymmetricKey(keyId, symmetricKey);
+        runCommand(command, keyId, traceId);
+        // The private key is only spent once the command has been handed off.  Until then a
+        // resumed message can still be decrypted.
+        mJournal.setStage(entry, InboundJournal.STAGE_DISPATCHED);
+        deletePublicKey(keyId);
+        mStats.record(MessageStats.Stage.DISPATCH, time);
     }
 
     private boolean validateSignature(GCMessage message) {
         String signatureBody = message.getSequence() + ":" + message.getPayload();
-        String localSignature = EncryptionUtils.HMAC.getSignature(mHmacSecret, signatureBody);
-        if (message.getSignature().equals(localSignature)) {
+        String localSignature = EncryptionUtils.HMAC.getSignature(mMessageContext.getHmacSecret(), signatureBody);
+        if (message.getSignature() != null
+                && MessageDigest.isEqual(message.getSignature().getBytes(), localSignature.getBytes())) {
             return true;
         } else {
             Log.w(TAG, "Local signature " + localSignature + " does not match remote signature " + message.getSignature());
@@ -197,45 +519,21 @@ public class GCMIntentService extends IntentService implements Response.Listener
         }
     }
 
-    private boolean validateMessage(GCMessage message, String keyId) {
-        return validateSignature(message) && validateSequence(message, keyId);
-    }
-
     private ECPrivateKeyParameters getPrivateKey(String keyId) {
-        String[] projection = new String[] { AuzoneAccountProvider.ECDHKeyStoreColumns.PRIVATE };
-        String selection = AuzoneAccountProvider.ECDHKeyStoreColumns.KEY_ID + " = ?";
-        String[] selectionArgs = new String[] { keyId };
-        Cursor cursor = mContext.getContentResolver().query(AuzoneAccountProvider.ECDH_CONTENT_URI, projection, selection, selectionArgs, null);
-        if (cursor.getCount() != 1) {
+        byte[] privateKeyBytes = mKeyStore.getPrivateKey(keyId);
+        if (privateKeyBytes == null) {
             return null;
         }
-
-        cursor.moveToFirst();
-        String privateKeyString = cursor.getString(cursor.getColumnIndex(AuzoneAccountProvider.ECDHKeyStoreColumns.PRIVATE));
-        cursor.close();
-
-        BigInteger privateKeyBigInteger = new BigInteger(AuzoneAccountUtils.decodeHex(privateKeyString));
-        return new ECPrivateKeyParameters(privateKeyBigInteger, EncryptionUtils.ECDH.DOMAIN_PARAMETERS);
+        return new ECPrivateKeyParameters(new BigInteger(privateKeyBytes), EncryptionUtils.ECDH.DOMAIN_PARAMETERS);
     }
 
     private void deletePublicKey(String keyId) {
-        String selection = AuzoneAccountProvider.ECDHKeyStoreColumns.KEY_ID + " = ?";
-        String[] selectionArgs = new String[] { keyId };
-        mContext.getContentResolver().delete(AuzoneAccountProvider.ECDH_CONTENT_URI, selection, selectionArgs);
+        mKeyStore.deleteKeyPair(keyId);
 
         // Generate more public keys.
         ECDHKeyService.startGenerate(mContext);
     }
 
-    private void storeSymmetricKey(String keyId, byte[] symmetricKey) {
-        String symmetricKeyHex = AuzoneAccountUtils.encodeHex(symmetricKey);
-        if (AuzoneAccount.DEBUG) Log.v(TAG, "Storing symmetric key " + symmetricKeyHex + " for keyId " + keyId);
-        ContentValues values = new ContentValues();
-        values.put(AuzoneAccountProvider.SymmetricKeyStoreColumns.KEY_ID, keyId);
-        values.put(AuzoneAccountProvider.SymmetricKeyStoreColumns.KEY, symmetricKeyHex);
-        mContext.getContentResolver().insert(AuzoneAccountProvider.SYMMETRIC_KEY_CONTENT_URI, values);
-    }
-
     private void sendFailureMessage() {
         PlaintextMessage keyExchangeFailedMessage = new PlaintextMessage(PlaintextMessage.COMMAND_KEY_EXCHANGE_FAILED);
         String deviceId = AuzoneAccountUtils.getUniqueDeviceId(mContext);
@@ -243,27 +541,30 @@ public class GCMIntentService extends IntentService implements Response.Listener
         mAuthClient.sendChannel(sendChannelRequestBody, this, this);
     }
 
-    private void handleBeginLocate(String keyId) {
+    private void handleBeginLocate(String keyId, long traceId) {
         if (AuzoneAccount.DEBUG) Log.d(TAG, "Handling begin_locate command");
-        DeviceFinderService.reportLocation(mContext, mAccount, keyId);
+        DeviceFinderService.reportLocation(mContext, mMessageContext.getAccount(), keyId, traceId);
     }
 
-    private void handleBeginWipe(String keyId) {
+    private void handleBeginWipe(String keyId, long traceId) {
         if (AuzoneAccount.DEBUG) Log.d(TAG, "Handling begin_wipe command");
-        mAuthClient.destroyDevice(mContext, keyId);
+        mAuthClient.destroyDevice(mContext, keyId, traceId);
     }
 
     private void handlePasswordReset() {
         AccountManager accountManager = (AccountManager) mContext.getSystemService(ACCOUNT_SERVICE);
         if (AuzoneAccount.DEBUG) Log.d(TAG, "Got password reset message, expiring access and refresh tokens");
-        mAuthClient.expireToken(accountManager, mAccount);
-        mAuthClient.expireRefreshToken(accountManager, mAccount);
-        mAuthClient.notifyPasswordChange(mAccount);
+        Account account = mMessageContext.getAccount();
+        mAuthClient.expireToken(accountManager, account);
+        mAuthClient.expireRefreshToken(accountManager, account);
+        mAuthClient.notifyPasswordChange(account);
     }
 
     private void handlePublicKeysExhausted() {
-        mContext.getContentResolver().delete(AuzoneAccountProvider.ECDH_CONTENT_URI, null, null);
-        ECDHKeyService.startGenerate(mContext);
+        mKeyPoolController.recordMiss();
+        // Keys that were never uploaded are still good.  Reconciling drops the ones the server
+        // has handed out, then only the shortfall is generated and only new keys are uploaded.
+        ECDHKeyService.startForcedReconcile(mContext);
     }
 
     @Override
@@ -30,6 +30,7 @@ public class GCMReceiver extends BroadcastReceiver {
         // Change class and action so we can send it to GCMIntentService
         intent.setAction(GCMIntentService.ACTION_RECEIVE);
         intent.setClass(context, GCMIntentService.class);
+        intent.putExtra(MessageTracer.EXTRA_TRACE_ID, MessageTracer.getInstance().begin());
 
         // Forward the intent to GCMIntentService
         if ( AuzoneAccount.DEBUG) Log.d(TAG, "Forwarding request to GCMIntentService");
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.gcm;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.OnAccountsUpdateListener;
+import android.content.Context;
+import android.util.Base64;
+import android.util.Log;
+import com.auzone.account.AuzoneAccount;
+import com.auzone.account.util.AuzoneAccountUtils;
+
+/**
+ * Account state needed to handle inbound messages, loaded on first use and kept until the
+ * accounts change, instead of going through AccountManager for every message.
+ */
+public class MessageContext implements OnAccountsUpdateListener {
+    private static final String TAG = MessageContext.class.getSimpleName();
+
+    private static MessageContext sInstance;
+
+    private final Context mContext;
+    private final AccountManager mAccountManager;
+
+    private boolean mLoaded;
+    private Account mAccount;
+    private byte[] mHmacSecret;
+
+    private MessageContext(Context context) {
+        mContext = context;
+        mAccountManager = AccountManager.get(context);
+        mAccountManager.addOnAccountsUpdatedListener(this, null, false);
+    }
+
+    public static synchronized MessageContext getInstance(Context context) {
+        if (sInstance == null) sInstance = new MessageContext(context.getApplicationContext());
+        return sInstance;
+    }
+
+    public synchronized Account getAccount() {
+        load();
+        return mAccount;
+    }
+
+    public synchronized byte[] getHmacSecret() {
+        load();
+        return mHmacSecret;
+    }
+
+    /**
+     * Drops the cached state.  Called when accounts change, and by AuthClient after it writes
+     * a new HMAC secret, which AccountManager does not report as an account change.
+     */
+    public synchronized void invalidate() {
+        if (AuzoneAccount.DEBUG) Log.d(TAG, "Invalidating message context");
+        mLoaded = false;
+        mAccount = null;
+        mHmacSecret = null;
+    }
+
+    @Override
+    public void onAccountsUpdated(Account[] accounts) {
+        invalidate();
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mAccount = AuzoneAccountUtils.getAuzoneAccountAccount(mContext);
+        String hmacSecret = mAccount != null
+                ? mAccountManager.getUserData(mAccount, AuzoneAccount.ACCOUNT_EXTRA_HMAC_SECRET) : null;
+        mHmacSecret = hmacSecret != null ? Base64.decode(hmacSecret, Base64.NO_WRAP) : null;
+        // The account is added before its HMAC secret is written, so don't cache a half set up
+        // account; try again on the next message.
+        mLoaded = mAccount == null || mHmacSecret != null;
+    }
+}
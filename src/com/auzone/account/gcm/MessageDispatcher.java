@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.gcm;
+
+import android.os.Process;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs message work on a small thread pool.  Work submitted under the same key runs one at a
+ * time in submission order; work under different keys may run in parallel.
+ */
+class MessageDispatcher {
+
+    private static final int MAX_THREADS = 3;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor mExecutor;
+    // Work waiting behind the task currently running for each key
+    private final HashMap<String, ArrayDeque<Runnable>> mQueues = new HashMap<String, ArrayDeque<Runnable>>();
+
+    MessageDispatcher(final String name) {
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, name + "-" + mCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public synchronized void execute(String key, Runnable task) {
+        ArrayDeque<Runnable> queue = mQueues.get(key);
+        if (queue != null) {
+            queue.add(task);
+            return;
+        }
+        mQueues.put(key, new ArrayDeque<Runnable>());
+        submit(key, task);
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    private void submit(final String key, final Runnable task) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    scheduleNext(key);
+                }
+            }
+        });
+    }
+
+    private synchronized void scheduleNext(String key) {
+        Runnable next = mQueues.get(key).poll();
+        if (next == null) {
+            mQueues.remove(key);
+        } else {
+            submit(key, next);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.gcm;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Per-stage latency of inbound GCM message handling since the process started, and the
+ * throughput, end-to-end latency and cost of the most recent messages.
+ */
+public class MessageStats {
+
+    public enum Stage {
+        PARSE,
+        VERIFY,
+        DERIVE,
+        DECRYPT,
+        DISPATCH
+    }
+
+    // Messages kept for throughput and percentiles
+    private static final int WINDOW = 256;
+
+    private static final MessageStats sInstance = new MessageStats();
+
+    private final long[] mCount = new long[Stage.values().length];
+    private final long[] mTotalNanos = new long[Stage.values().length];
+    private final long[] mMaxNanos = new long[Stage.values().length];
+
+    private long mMessages;
+    private long mDbWrites;
+    // Ring buffers over the last WINDOW messages, indexed by mMessages % WINDOW
+    private final long[] mLatencyNanos = new long[WINDOW];
+    private final long[] mFinishedAtNanos = new long[WINDOW];
+
+    private MessageStats() {}
+
+    public static MessageStats getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Records the time since startNanos against stage and returns the current time, so
+     * consecutive stages can be timed by chaining calls.
+     */
+    public synchronized long record(Stage stage, long startNanos) {
+        long now = System.nanoTime();
+        long elapsed = now - startNanos;
+        int i = stage.ordinal();
+        mCount[i]++;
+        mTotalNanos[i] += elapsed;
+        mMaxNanos[i] = Math.max(mMaxNanos[i], elapsed);
+        return now;
+    }
+
+    /**
+     * Records a message that has been handled from intake to completion.
+     */
+    public synchronized void recordMessage(long startNanos, int dbWrites) {
+        long now = System.nanoTime();
+        int i = (int) (mMessages % WINDOW);
+        mLatencyNanos[i] = now - startNanos;
+        mFinishedAtNanos[i] = now;
+        mMessages++;
+        mDbWrites += dbWrites;
+    }
+
+    /**
+     * Messages recorded by recordMessage since the process started.
+     */
+    synchronized long getMessageCount() {
+        return mMessages;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Inbound messages:");
+        for (Stage stage : Stage.values()) {
+            int i = stage.ordinal();
+            pw.println("  " + stage.name().toLowerCase() + ": count=" + mCount[i]
+                    + " avg=" + (mCount[i] > 0 ? mTotalNanos[i] / mCount[i] / 1000 : 0) + " us"
+                    + " max=" + mMaxNanos[i] / 1000 + " us");
+        }
+        int n = (int) Math.min(mMessages, WINDOW);
+        if (n == 0) {
+            return;
+        }
+        long[] latencies = Arrays.copyOf(mLatencyNanos, n);
+        Arrays.sort(latencies);
+        // Rate over the window, from the oldest finish time it still holds to the newest
+        long newest = mFinishedAtNanos[(int) ((mMessages - 1) % WINDOW)];
+        long oldest = mFinishedAtNanos[(int) ((mMessages - n) % WINDOW)];
+        pw.println("  messages=" + mMessages
+                + " rate=" + (newest > oldest ? (n - 1) * 1e9f / (newest - oldest) : 0f) + "/sec"
+                + " p50=" + latencies[(n - 1) / 2] / 1000 + " us"
+                + " p99=" + latencies[(n - 1) * 99 / 100] / 1000 + " us"
+                + " (last " + n + ")");
+        pw.println("  dbWrites/message=" + (float) mDbWrites / mMessages);
+    }
+}
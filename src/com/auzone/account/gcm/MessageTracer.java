@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.gcm;
+
+import android.os.SystemClock;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * End-to-end timing of inbound pushes.  GCMReceiver starts a trace for every push and the id
+ * travels with the message, as an intent extra or a field, through each component that acts on
+ * it; each of them records a named hop.  The most recent traces are kept in a ring buffer and
+ * exported as JSON through dumpsys.
+ */
+public class MessageTracer {
+
+    public static final String EXTRA_TRACE_ID = "com.auzone.account.trace_id";
+    /** Passed where a message is not being traced, e.g. one resumed from the journal. */
+    public static final long NO_TRACE = 0;
+
+    public static final String HOP_RECEIVED = "received";
+    public static final String HOP_INTAKE = "intake";
+    public static final String HOP_VERIFIED = "verified";
+    public static final String HOP_DISPATCHED = "dispatched";
+    public static final String HOP_DECRYPTED = "decrypted";
+    public static final String HOP_COMMAND = "command";
+    public static final String HOP_LOCATION_FIX = "location_fix";
+    public static final String HOP_SEND_CHANNEL = "send_channel";
+    public static final String HOP_SEND_CHANNEL_RESPONSE = "send_channel_response";
+    public static final String HOP_SEND_CHANNEL_ERROR = "send_channel_error";
+    public static final String HOP_WIPE_STARTED = "wipe_started";
+
+    private static final int CAPACITY = 64;
+
+    private static final MessageTracer sInstance = new MessageTracer();
+
+    // Trace n lives in slot n % CAPACITY until trace n + CAPACITY replaces it
+    private final Trace[] mTraces = new Trace[CAPACITY];
+    private long mNextId = 1;
+
+    private MessageTracer() {}
+
+    public static MessageTracer getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Starts a trace at the received hop and returns its id.
+     */
+    public synchronized long begin() {
+        Trace trace = new Trace(mNextId++);
+        mTraces[(int) (trace.id % CAPACITY)] = trace;
+        trace.add(HOP_RECEIVED);
+        return trace.id;
+    }
+
+    /**
+     * Records a hop.  Ignored for NO_TRACE and for traces that have already been evicted.
+     */
+    public synchronized void hop(long traceId, String hop) {
+        if (traceId == NO_TRACE) {
+            return;
+        }
+        Trace trace = mTraces[(int) (traceId % CAPACITY)];
+        if (trace != null && trace.id == traceId) {
+            trace.add(hop);
+        }
+    }
+
+    /**
+     * Writes the buffered traces, oldest first, as a JSON array of
+     * {"id", "start" (epoch millis), "hops": [{"hop", "ms" (since received)}]}.
+     */
+    public synchronized void writeJson(JsonWriter out) throws IOException {
+        out.beginArray();
+        for (int i = 0; i < CAPACITY; i++) {
+            Trace trace = mTraces[(int) ((mNextId + i) % CAPACITY)];
+            if (trace == null) {
+                continue;
+            }
+            out.beginObject();
+            out.name("id").value(trace.id);
+            out.name("start").value(trace.startMillis);
+            out.name("hops").beginArray();
+            for (int j = 0; j < trace.hops.size(); j++) {
+                out.beginObject();
+                out.name("hop").value(trace.hops.get(j));
+                out.name("ms").value(trace.times.get(j) - trace.startElapsed);
+                out.endObject();
+            }
+            out.endArray();
+            out.endObject();
+        }
+        out.endArray();
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("Message traces:");
+        pw.print("  ");
+        try {
+            JsonWriter out = new JsonWriter(pw);
+            writeJson(out);
+            out.flush();
+        } catch (IOException e) {
+            // PrintWriter swallows write errors rather than throwing
+            throw new AssertionError(e);
+        }
+        pw.println();
+    }
+
+    private static class Trace {
+        final long id;
+        final long startMillis = System.currentTimeMillis();
+        final long startElapsed = SystemClock.elapsedRealtime();
+        final ArrayList<String> hops = new ArrayList<String>();
+        final ArrayList<Long> times = new ArrayList<Long>();
+
+        Trace(long id) {
+            this.id = id;
+        }
+
+        void add(String hop) {
+            hops.add(hop);
+            times.add(SystemClock.elapsedRealtime());
+        }
+    }
+}
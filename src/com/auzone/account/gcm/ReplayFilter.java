@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.gcm;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.Log;
+import com.auzone.account.AuzoneAccount;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Drops GCM redeliveries before they are parsed.
+ *
+ * Remembers a fingerprint of every message accepted in the last WINDOW_MS, up to MAX_ENTRIES,
+ * and persists them in the GCM preferences so a redelivery after a restart is caught too.
+ * Only messages carrying a GCM message id are tracked; plaintext commands repeat the same
+ * payload legitimately, and encrypted ones are already covered by the sequence check.
+ */
+class ReplayFilter {
+    private static final String TAG = ReplayFilter.class.getSimpleName();
+
+    private static final String PREF_FINGERPRINTS = "replay_fingerprints";
+    // Set by GCM on downstream messages and kept across redeliveries
+    private static final String EXTRA_MESSAGE_ID = "google.message_id";
+
+    private static final long WINDOW_MS = 1000 * 60 * 60 * 24;
+    private static final int MAX_ENTRIES = 128;
+
+    private static ReplayFilter sInstance;
+
+    private final SharedPreferences mPrefs;
+    // Fingerprint to time accepted, oldest first
+    private final LinkedHashMap<Long, Long> mSeen = new LinkedHashMap<Long, Long>();
+    private final MessageDigest mDigest;
+
+    private ReplayFilter(Context context) {
+        mPrefs = context.getSharedPreferences(AuzoneAccount.GCM_PREFERENCES, Context.MODE_PRIVATE);
+        try {
+            mDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        load();
+    }
+
+    public static synchronized ReplayFilter getInstance(Context context) {
+        if (sInstance == null) sInstance = new ReplayFilter(context.getApplicationContext());
+        return sInstance;
+    }
+
+    /**
+     * Returns true and records the message if it has not been seen within the window.
+     * Messages without a GCM message id are always accepted.
+     */
+    public synchronized boolean accept(String messageId, String data) {
+        if (messageId == null) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        evict(now);
+        long fingerprint = fingerprint(messageId, data);
+        if (mSeen.containsKey(fingerprint)) {
+            if (AuzoneAccount.DEBUG) Log.d(TAG, "Dropping replayed message " + Long.toHexString(fingerprint));
+            return false;
+        }
+        mSeen.put(fingerprint, now);
+        save();
+        return true;
+    }
+
+    static String getMessageId(Intent intent) {
+        return intent.getStringExtra(EXTRA_MESSAGE_ID);
+    }
+
+    private long fingerprint(String messageId, String data) {
+        mDigest.update(messageId.getBytes());
+        mDigest.update((byte) 0);
+        if (data != null) mDigest.update(data.getBytes());
+        byte[] hash = mDigest.digest();
+        long fingerprint = 0;
+        for (int i = 0; i < 8; i++) {
+            fingerprint = (fingerprint << 8) | (hash[i] & 0xff);
+        }
+        return fingerprint;
+    }
+
+    private void evict(long now) {
+        Iterator<Map.Entry<Long, Long>> it = mSeen.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Long> entry = it.next();
+            if (mSeen.size() < MAX_ENTRIES && entry.getValue() > now - WINDOW_MS) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    private void load() {
+        String saved = mPrefs.getString(PREF_FINGERPRINTS, null);
+        if (TextUtils.isEmpty(saved)) {
+            return;
+        }
+        for (String entry : saved.split(",")) {
+            int separator = entry.indexOf(':');
+            try {
+                mSeen.put(Long.parseLong(entry.substring(0, separator)),
+                        Long.parseLong(entry.substring(separator + 1)));
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Ignoring malformed replay fingerprint " + entry);
+            }
+        }
+    }
+
+    private void save() {
+        StringBuilder sb = new StringBuilder(mSeen.size() * 32);
+        for (Map.Entry<Long, Long> entry : mSeen.entrySet()) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(entry.getKey()).append(':').append(entry.getValue());
+        }
+        mPrefs.edit().putString(PREF_FINGERPRINTS, sb.toString()).apply();
+    }
+}
@@ -20,10 +20,15 @@ import com.auzone.account.util.AuzoneAccountUtils;
 import com.auzone.account.util.EncryptionUtils;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
 import com.google.gson.annotations.Expose;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import org.spongycastle.crypto.params.ECPublicKeyParameters;
 
+import java.io.IOException;
+
 public class EncryptedMessage implements Message {
     @Expose
     private String ciphertext;
@@ -56,15 +61,49 @@ public class EncryptedMessage implements Message {
                 .toJson(this);
     }
 
-    public void encrypt(String symmetricKey) {
-        byte[] symmetricKeyBytes = AuzoneAccountUtils.decodeHex(symmetricKey);
+    public void encrypt(byte[] symmetricKey) {
         String json = toJson();
 
-        byte[] result = EncryptionUtils.AES.encrypt(json, symmetricKeyBytes);
+        byte[] result = EncryptionUtils.AES.encrypt(json, symmetricKey);
         ciphertext = AuzoneAccountUtils.encodeHex(result);
     }
 
     public static EncryptedMessage fromJson(String json) {
-        return new Gson().fromJson(json, EncryptedMessage.class);
+        return Messages.GSON.fromJson(json, EncryptedMessage.class);
+    }
+
+    /**
+     * Only registered for EncryptedMessage itself; outbound subclasses add their own fields
+     * and still go through reflection.
+     */
+    static class Adapter extends TypeAdapter<EncryptedMessage> {
+        @Override
+        public EncryptedMessage read(JsonReader in) throws IOException {
+            EncryptedMessage message = new EncryptedMessage();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("ciphertext".equals(name)) {
+                    message.ciphertext = Messages.nextString(in);
+                } else if ("key_id".equals(name)) {
+                    message.key_id = Messages.nextString(in);
+                } else if ("public_key".equals(name)) {
+                    message.public_key = Messages.nextString(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return message;
+        }
+
+        @Override
+        public void write(JsonWriter out, EncryptedMessage message) throws IOException {
+            out.beginObject();
+            out.name("ciphertext").value(message.ciphertext);
+            out.name("key_id").value(message.key_id);
+            out.name("public_key").value(message.public_key);
+            out.endObject();
+        }
     }
 }
@@ -16,11 +16,11 @@
 
 package com.auzone.account.gcm.model;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
-import org.spongycastle.crypto.params.ECPublicKeyParameters;
-import org.spongycastle.math.ec.ECPoint;
+import java.io.IOException;
 
 public class GCMessage {
     public static final String COMMAND_SECURE_MESSAGE = "secure_message";
@@ -52,6 +52,43 @@ public class GCMessage {
     }
 
     public String toJson() {
-        return new GsonBuilder().setPrettyPrinting().create().toJson(this);
+        return Messages.GSON.toJson(this);
+    }
+
+    static class Adapter extends TypeAdapter<GCMessage> {
+        @Override
+        public GCMessage read(JsonReader in) throws IOException {
+            GCMessage message = new GCMessage();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("command".equals(name)) {
+                    message.command = Messages.nextString(in);
+                } else if ("account".equals(name)) {
+                    message.account = Messages.nextString(in);
+                } else if ("payload".equals(name)) {
+                    message.payload = Messages.nextString(in);
+                } else if ("signature".equals(name)) {
+                    message.signature = Messages.nextString(in);
+                } else if ("sequence".equals(name)) {
+                    message.sequence = in.nextInt();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return message;
+        }
+
+        @Override
+        public void write(JsonWriter out, GCMessage message) throws IOException {
+            out.beginObject();
+            out.name("command").value(message.command);
+            out.name("account").value(message.account);
+            out.name("payload").value(message.payload);
+            out.name("signature").value(message.signature);
+            out.name("sequence").value(message.sequence);
+            out.endObject();
+        }
     }
 }
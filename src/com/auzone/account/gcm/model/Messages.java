@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.gcm.model;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Shared Gson for inbound messages.  The registered adapters read each field straight off the
+ * stream instead of building the reflective adapters on every parse.
+ */
+public final class Messages {
+
+    public static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(GCMessage.class, new GCMessage.Adapter().nullSafe())
+            .registerTypeAdapter(EncryptedMessage.class, new EncryptedMessage.Adapter().nullSafe())
+            .registerTypeAdapter(PlaintextMessage.class, new PlaintextMessage.Adapter().nullSafe())
+            .create();
+
+    private Messages() {}
+
+    static String nextString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+}
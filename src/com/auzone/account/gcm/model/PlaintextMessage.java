@@ -17,6 +17,11 @@
 package com.auzone.account.gcm.model;
 
 import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
 
 public class PlaintextMessage implements Message {
     public static final String COMMAND_BEGIN_LOCATE = "begin_locate";
@@ -43,4 +48,32 @@ public class PlaintextMessage implements Message {
     public String toJson() {
         return new Gson().toJson(this);
     }
+
+    public static PlaintextMessage fromJson(String json) {
+        return Messages.GSON.fromJson(json, PlaintextMessage.class);
+    }
+
+    static class Adapter extends TypeAdapter<PlaintextMessage> {
+        @Override
+        public PlaintextMessage read(JsonReader in) throws IOException {
+            String command = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                if ("command".equals(in.nextName())) {
+                    command = Messages.nextString(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new PlaintextMessage(command);
+        }
+
+        @Override
+        public void write(JsonWriter out, PlaintextMessage message) throws IOException {
+            out.beginObject();
+            out.name("command").value(message.command);
+            out.endObject();
+        }
+    }
 }
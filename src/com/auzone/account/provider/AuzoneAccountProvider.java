@@ -19,7 +19,6 @@ package com.auzone.account.provider;
 import android.content.ContentProvider;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -28,9 +27,14 @@ import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.text.TextUtils;
-import android.util.Log;
-import com.auzone.account.AuzoneAccount;
+import com.auzone.account.encryption.KeyPipelineStats;
+import com.auzone.account.encryption.KeyPoolController;
+import com.auzone.account.gcm.MessageStats;
+import com.auzone.account.gcm.MessageTracer;
+import com.auzone.account.util.WakeLockManager;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.HashMap;
 
 public class AuzoneAccountProvider extends ContentProvider {
@@ -42,8 +46,9 @@ public class AuzoneAccountProvider extends ContentProvider {
     public static final Uri SYMMETRIC_KEY_CONTENT_URI = Uri.parse("content://" + AUTHORITY).buildUpon().appendPath(SYMMETRIC_KEY_PATH).build();
     public static final Uri ECDH_CONTENT_URI = Uri.parse("content://" + AUTHORITY).buildUpon().appendPath(ECDH_KEY_PATH).build();
 
-    private static final String TABLE_SYMMETRIC_KEYS = "symmetric_keys";
-    private static final String TABLE_ECDH_KEYS = "ecdh_keys";
+    static final String TABLE_SYMMETRIC_KEYS = "symmetric_keys";
+    static final String TABLE_ECDH_KEYS = "ecdh_keys";
+    static final String TABLE_INBOUND_JOURNAL = "inbound_journal";
     private static final UriMatcher URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
 
     private static final int SYMMETRIC_KEY = 1;
@@ -66,30 +71,29 @@ public class AuzoneAccountProvider extends ContentProvider {
         sSymmetricKeyProjectionMap.put(SymmetricKeyStoreColumns.KEY, SymmetricKeyStoreColumns.KEY);
         sSymmetricKeyProjectionMap.put(SymmetricKeyStoreColumns.LOCAL_SEQUENCE, SymmetricKeyStoreColumns.LOCAL_SEQUENCE);
         sSymmetricKeyProjectionMap.put(SymmetricKeyStoreColumns.REMOTE_SEQUENCE, SymmetricKeyStoreColumns.REMOTE_SEQUENCE);
-        sSymmetricKeyProjectionMap.put(SymmetricKeyStoreColumns.EXPIRATION, SymmetricKeyStoreColumns.EXPIRATION);
+        sSymmetricKeyProjectionMap.put(SymmetricKeyStoreColumns.EXPIRES_AT, SymmetricKeyStoreColumns.EXPIRES_AT);
 
         sECDHKeyProjectionMap = new HashMap<String, String>();
         sECDHKeyProjectionMap.put(ECDHKeyStoreColumns._ID, ECDHKeyStoreColumns._ID);
         sECDHKeyProjectionMap.put(ECDHKeyStoreColumns.KEY_ID, ECDHKeyStoreColumns.KEY_ID);
         sECDHKeyProjectionMap.put(ECDHKeyStoreColumns.PRIVATE, ECDHKeyStoreColumns.PRIVATE);
         sECDHKeyProjectionMap.put(ECDHKeyStoreColumns.PUBLIC, ECDHKeyStoreColumns.PUBLIC);
+        sECDHKeyProjectionMap.put(ECDHKeyStoreColumns.UPLOADED, ECDHKeyStoreColumns.UPLOADED);
+        sECDHKeyProjectionMap.put(ECDHKeyStoreColumns.ENCODED, ECDHKeyStoreColumns.ENCODED);
+        sECDHKeyProjectionMap.put(ECDHKeyStoreColumns.SIGNATURE, ECDHKeyStoreColumns.SIGNATURE);
     }
     private SQLiteOpenHelper mOpenHelper;
+    private ExpiredKeySweeper mExpiredKeySweeper;
 
 
     @Override
     public boolean onCreate() {
-        mOpenHelper = new DatabaseHelper(getContext());
-        cleanUpExpiredSymmetricKeys();
+        mOpenHelper = DatabaseHelper.getInstance(getContext());
+        mExpiredKeySweeper = new ExpiredKeySweeper(mOpenHelper);
+        mExpiredKeySweeper.start();
         return true;
     }
 
-    private void cleanUpExpiredSymmetricKeys() {
-        if (AuzoneAccount.DEBUG) Log.d(TAG, "Cleaning up expired symmetric keys");
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        db.execSQL("delete from " + TABLE_SYMMETRIC_KEYS + " where " + SymmetricKeyStoreColumns.EXPIRATION + " < datetime('now', 'localtime')");
-    }
-
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
         if (Binder.getCallingPid() != android.os.Process.myPid()) {
@@ -209,59 +213,31 @@ public class AuzoneAccountProvider extends ContentProvider {
         }
     }
 
-    public static void incrementSequence(Context context, String column, String keyId) {
-        SQLiteOpenHelper openHelper = new DatabaseHelper(context.getApplicationContext());
-        SQLiteDatabase db = openHelper.getWritableDatabase();
-        db.execSQL("UPDATE " + TABLE_SYMMETRIC_KEYS + " SET " + column + " = " + column + " + 1 WHERE " + SymmetricKeyStoreColumns.KEY_ID + " = ?;", new String[]{ keyId });
-        openHelper.close();
-    }
-
-    private static class DatabaseHelper extends SQLiteOpenHelper {
-
-        private static final String DATABASE_NAME = "auzoneaccount.db";
-        private static final int DATABASE_VERSION = 7;
-
-        public DatabaseHelper(Context context) {
-            super(context, DATABASE_NAME, null, DATABASE_VERSION);
-        }
-
-        @Override
-        public void onCreate(SQLiteDatabase db) {
-            db.execSQL("CREATE TABLE " + TABLE_SYMMETRIC_KEYS
-                    + " ("
-                    + SymmetricKeyStoreColumns._ID + " INTEGER PRIMARY KEY, "
-                    + SymmetricKeyStoreColumns.KEY + " TEXT NOT NULL, "
-                    + SymmetricKeyStoreColumns.LOCAL_SEQUENCE + " INTEGER NOT NULL DEFAULT 1, "
-                    + SymmetricKeyStoreColumns.REMOTE_SEQUENCE + " INTEGER NOT NULL DEFAULT 1, "
-                    + SymmetricKeyStoreColumns.EXPIRATION + " DATETIME DEFAULT 0, "
-                    + SymmetricKeyStoreColumns.KEY_ID + " TEXT NOT NULL UNIQUE);");
-
-            db.execSQL("create trigger update_expiration after insert on " + TABLE_SYMMETRIC_KEYS +
-                    " begin update " + TABLE_SYMMETRIC_KEYS + " set " + SymmetricKeyStoreColumns.EXPIRATION +
-                    "= datetime('now', '+60 minutes', 'localtime') where expiration = 0" +
-                    "; end");
-
-            db.execSQL("CREATE TABLE " + TABLE_ECDH_KEYS
-                    + " ("
-                    + ECDHKeyStoreColumns._ID + " INTEGER PRIMARY KEY, "
-                    + ECDHKeyStoreColumns.KEY_ID + " TEXT NOT NULL UNIQUE, "
-                    + ECDHKeyStoreColumns.PRIVATE + " TEXT NOT NULL, "
-                    + ECDHKeyStoreColumns.PUBLIC + " TEXT NOT NULL);");
-        }
-
-        @Override
-        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            db.execSQL("DROP TABLE IF EXISTS " + TABLE_SYMMETRIC_KEYS);
-            db.execSQL("DROP TABLE IF EXISTS " + TABLE_ECDH_KEYS);
-            onCreate(db);
-        }
+    /**
+     * Key store diagnostics, readable with
+     * "adb shell dumpsys activity provider com.auzone.account.store".
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        KeyStore keyStore = KeyStore.getInstance(getContext());
+        pw.println("Expired key sweeper:");
+        pw.println("  lastSweep=" + mExpiredKeySweeper.getLastSweepTime()
+                + " lastReclaimed=" + mExpiredKeySweeper.getLastReclaimed()
+                + " totalReclaimed=" + mExpiredKeySweeper.getTotalReclaimed());
+        KeyPoolController.getInstance(getContext()).dump(pw, keyStore.getKeyPairCount());
+        pw.println("  uploadedRoot=" + keyStore.getUploadedKeysRoot());
+        KeyPipelineStats.getInstance().dump(pw);
+        MessageStats.getInstance().dump(pw);
+        WakeLockManager.getInstance(getContext()).dump(pw);
+        MessageTracer.getInstance().dump(pw);
     }
 
     public static interface SymmetricKeyStoreColumns {
         public static final String _ID = "_id";
         public static final String KEY_ID = "key_id";
         public static final String KEY = "symmetric_key";
-        public static final String EXPIRATION = "expiration";
+        // UTC epoch millis
+        public static final String EXPIRES_AT = "expires_at";
         public static final String LOCAL_SEQUENCE = "local_sequence";
         public static final String REMOTE_SEQUENCE = "remote_sequence";
         public static final String CONTENT_TYPE = "vnd.auzone.cursor.dir/symmetricKey";
@@ -273,7 +249,26 @@ public class AuzoneAccountProvider extends ContentProvider {
         public static final String KEY_ID = "key_id";
         public static final String PRIVATE = "private";
         public static final String PUBLIC = "public";
+        // 1 once the server has acknowledged the key
+        public static final String UPLOADED = "uploaded";
+        // Hex encoded public key and its HMAC signature, as sent to the server
+        public static final String ENCODED = "encoded";
+        public static final String SIGNATURE = "signature";
         public static final String CONTENT_TYPE = "vnd.auzone.cursor.dir/publicKey";
         public static final String CONTENT_TYPE_ITEM = "vnd.auzone.cursor.item/publicKey";
     }
+
+    /**
+     * Not exported through a content URI; only InboundJournal uses this table.
+     */
+    public static interface InboundJournalColumns {
+        public static final String _ID = "_id";
+        // Raw GCM data, exactly as received
+        public static final String MESSAGE = "message";
+        public static final String STAGE = "stage";
+        // UTC epoch millis
+        public static final String RECEIVED_AT = "received_at";
+        // Times an earlier process was resumed with this entry
+        public static final String ATTEMPTS = "attempts";
+    }
 }
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.provider;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import com.auzone.account.AuzoneAccount;
+
+import com.auzone.account.provider.AuzoneAccountProvider.ECDHKeyStoreColumns;
+import com.auzone.account.provider.AuzoneAccountProvider.InboundJournalColumns;
+import com.auzone.account.provider.AuzoneAccountProvider.SymmetricKeyStoreColumns;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import static com.auzone.account.provider.AuzoneAccountProvider.TABLE_ECDH_KEYS;
+import static com.auzone.account.provider.AuzoneAccountProvider.TABLE_INBOUND_JOURNAL;
+import static com.auzone.account.provider.AuzoneAccountProvider.TABLE_SYMMETRIC_KEYS;
+
+class DatabaseHelper extends SQLiteOpenHelper {
+
+    private static final String TAG = DatabaseHelper.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "auzoneaccount.db";
+    private static final int DATABASE_VERSION = 13;
+
+    /**
+     * Oldest schema that onUpgrade knows how to migrate in place.  Anything older predates
+     * the migration steps below and is rebuilt from scratch.
+     */
+    private static final int MIN_MIGRATABLE_VERSION = 7;
+
+    private static DatabaseHelper sInstance;
+
+    private DatabaseHelper(Context context) {
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * @param name database file name, or null for a private in-memory database
+     */
+    DatabaseHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+    }
+
+    /**
+     * The provider and KeyStore share one helper so they share one connection pool.
+     */
+    public static synchronized DatabaseHelper getInstance(Context context) {
+        if (sInstance == null) sInstance = new DatabaseHelper(context.getApplicationContext());
+        return sInstance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_SYMMETRIC_KEYS
+                + " ("
+                + SymmetricKeyStoreColumns._ID + " INTEGER PRIMARY KEY, "
+                + SymmetricKeyStoreColumns.KEY + " BLOB NOT NULL, "
+                + SymmetricKeyStoreColumns.LOCAL_SEQUENCE + " INTEGER NOT NULL DEFAULT 1, "
+                + SymmetricKeyStoreColumns.REMOTE_SEQUENCE + " INTEGER NOT NULL DEFAULT 1, "
+                + SymmetricKeyStoreColumns.EXPIRES_AT + " INTEGER NOT NULL DEFAULT 0, "
+                + SymmetricKeyStoreColumns.KEY_ID + " TEXT NOT NULL UNIQUE);");
+
+        db.execSQL("create trigger update_expiration after insert on " + TABLE_SYMMETRIC_KEYS +
+                " begin update " + TABLE_SYMMETRIC_KEYS + " set " + SymmetricKeyStoreColumns.EXPIRES_AT +
+                " = (strftime('%s', 'now') + 3600) * 1000 where " + SymmetricKeyStoreColumns._ID + " = new." +
+                SymmetricKeyStoreColumns._ID + " and " + SymmetricKeyStoreColumns.EXPIRES_AT + " = 0" +
+                "; end");
+
+        db.execSQL("CREATE TABLE " + TABLE_ECDH_KEYS
+                + " ("
+                + ECDHKeyStoreColumns._ID + " INTEGER PRIMARY KEY, "
+                + ECDHKeyStoreColumns.KEY_ID + " TEXT NOT NULL UNIQUE, "
+                + ECDHKeyStoreColumns.PRIVATE + " BLOB NOT NULL, "
+                + ECDHKeyStoreColumns.PUBLIC + " BLOB NOT NULL, "
+                + ECDHKeyStoreColumns.UPLOADED + " INTEGER NOT NULL DEFAULT 0, "
+                + ECDHKeyStoreColumns.ENCODED + " TEXT, "
+                + ECDHKeyStoreColumns.SIGNATURE + " TEXT);");
+
+        db.execSQL("CREATE TABLE " + TABLE_INBOUND_JOURNAL
+                + " ("
+                + InboundJournalColumns._ID + " INTEGER PRIMARY KEY, "
+                + InboundJournalColumns.MESSAGE + " TEXT NOT NULL, "
+                + InboundJournalColumns.STAGE + " INTEGER NOT NULL DEFAULT 0, "
+                + InboundJournalColumns.RECEIVED_AT + " INTEGER NOT NULL, "
+                + InboundJournalColumns.ATTEMPTS + " INTEGER NOT NULL DEFAULT 0);");
+    }
+
+    /**
+     * SQLiteOpenHelper already runs onUpgrade inside a single transaction, so a failing step
+     * rolls the whole upgrade back and leaves the database at oldVersion.
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < MIN_MIGRATABLE_VERSION) {
+            Log.w(TAG, "Database version " + oldVersion + " is too old to migrate, recreating tables");
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_SYMMETRIC_KEYS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_ECDH_KEYS);
+            onCreate(db);
+            return;
+        }
+
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            if (AuzoneAccount.DEBUG) Log.d(TAG, "Upgrading database to version " + version);
+            upgradeTo(db, version);
+        }
+    }
+
+    /**
+     * Migrates the schema from version - 1 to version, keeping existing rows.  Each step must
+     * spell out its own DDL rather than reuse onCreate, since onCreate always describes the
+     * latest schema.
+     */
+    private void upgradeTo(SQLiteDatabase db, int version) {
+        switch (version) {
+            case 8:
+                upgradeToBlobKeys(db);
+                break;
+            case 9:
+                upgradeToEpochExpiration(db);
+                break;
+            case 10:
+                // Existing keys are treated as not uploaded, so the first pass after the
+                // upgrade re-sends them once and records the server's acknowledgement.
+                db.execSQL("ALTER TABLE ecdh_keys ADD COLUMN uploaded INTEGER NOT NULL DEFAULT 0");
+                break;
+            case 11:
+                // Left NULL for existing rows; they are filled in on their next upload.
+                db.execSQL("ALTER TABLE ecdh_keys ADD COLUMN encoded TEXT");
+                db.execSQL("ALTER TABLE ecdh_keys ADD COLUMN signature TEXT");
+                break;
+            case 12:
+                db.execSQL("CREATE TABLE inbound_journal ("
+                        + "_id INTEGER PRIMARY KEY, "
+                        + "message TEXT NOT NULL, "
+                        + "stage INTEGER NOT NULL DEFAULT 0, "
+                        + "received_at INTEGER NOT NULL);");
+                break;
+            case 13:
+                db.execSQL("ALTER TABLE inbound_journal ADD COLUMN attempts INTEGER NOT NULL DEFAULT 0");
+                break;
+            default:
+                throw new IllegalStateException("No migration to database version " + version);
+        }
+    }
+
+    /**
+     * Version 8 stores key material as raw BLOBs instead of hex TEXT.  SQLite cannot change a
+     * column's type in place, so both tables are rebuilt and each row is decoded on the way over.
+     * Rows whose key material isn't valid hex could never have been used and are dropped rather
+     * than failing the whole upgrade.
+     */
+    private void upgradeToBlobKeys(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE symmetric_keys_v8 ("
+                + "_id INTEGER PRIMARY KEY, "
+                + "symmetric_key BLOB NOT NULL, "
+                + "local_sequence INTEGER NOT NULL DEFAULT 1, "
+                + "remote_sequence INTEGER NOT NULL DEFAULT 1, "
+                + "expiration DATETIME DEFAULT 0, "
+                + "key_id TEXT NOT NULL UNIQUE);");
+        SQLiteStatement insert = db.compileStatement("INSERT INTO symmetric_keys_v8 "
+                + "(_id, symmetric_key, local_sequence, remote_sequence, expiration, key_id) "
+                + "VALUES (?, ?, ?, ?, ?, ?)");
+        Cursor c = db.rawQuery("SELECT _id, symmetric_key, local_sequence, remote_sequence, expiration, key_id "
+                + "FROM symmetric_keys", null);
+        try {
+            while (c.moveToNext()) {
+                byte[] key = decodeHex(c.getString(1));
+                if (key == null) {
+                    Log.w(TAG, "Dropping symmetric key " + c.getString(5) + ", key is not hex");
+                    continue;
+                }
+                insert.clearBindings();
+                insert.bindLong(1, c.getLong(0));
+                insert.bindBlob(2, key);
+                insert.bindLong(3, c.getLong(2));
+                insert.bindLong(4, c.getLong(3));
+                if (c.isNull(4)) {
+                    insert.bindNull(5);
+                } else {
+                    insert.bindString(5, c.getString(4));
+                }
+                insert.bindString(6, c.getString(5));
+                insert.executeInsert();
+            }
+        } finally {
+            c.close();
+            insert.close();
+        }
+        db.execSQL("DROP TABLE symmetric_keys");
+        db.execSQL("ALTER TABLE symmetric_keys_v8 RENAME TO symmetric_keys");
+        db.execSQL("create trigger update_expiration after insert on symmetric_keys"
+                + " begin update symmetric_keys set expiration"
+                + "= datetime('now', '+60 minutes', 'localtime') where expiration = 0"
+                + "; end");
+
+        db.execSQL("CREATE TABLE ecdh_keys_v8 ("
+                + "_id INTEGER PRIMARY KEY, "
+                + "key_id TEXT NOT NULL UNIQUE, "
+                + "private BLOB NOT NULL, "
+                + "public BLOB NOT NULL);");
+        insert = db.compileStatement("INSERT INTO ecdh_keys_v8 (_id, key_id, private, public) VALUES (?, ?, ?, ?)");
+        c = db.rawQuery("SELECT _id, key_id, private, public FROM ecdh_keys", null);
+        try {
+            while (c.moveToNext()) {
+                byte[] privateKey = decodeHex(c.getString(2));
+                byte[] publicKey = decodeHex(c.getString(3));
+                if (privateKey == null || publicKey == null) {
+                    Log.w(TAG, "Dropping ECDH key " + c.getString(1) + ", key is not hex");
+                    continue;
+                }
+                insert.clearBindings();
+                insert.bindLong(1, c.getLong(0));
+                insert.bindString(2, c.getString(1));
+                insert.bindBlob(3, privateKey);
+                insert.bindBlob(4, publicKey);
+                insert.executeInsert();
+            }
+        } finally {
+            c.close();
+            insert.close();
+        }
+        db.execSQL("DROP TABLE ecdh_keys");
+        db.execSQL("ALTER TABLE ecdh_keys_v8 RENAME TO ecdh_keys");
+    }
+
+    /**
+     * Returns null instead of throwing, unlike AuzoneAccountUtils.decodeHex.
+     */
+    private static byte[] decodeHex(String hex) {
+        if (hex == null) {
+            return null;
+        }
+        try {
+            return Hex.decodeHex(hex.toCharArray());
+        } catch (DecoderException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Version 9 replaces the local-time expiration DATETIME with expires_at, UTC epoch millis,
+     * so expiry checks are a plain integer comparison that survives timezone changes.
+     */
+    private void upgradeToEpochExpiration(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE symmetric_keys_v9 ("
+                + "_id INTEGER PRIMARY KEY, "
+                + "symmetric_key BLOB NOT NULL, "
+                + "local_sequence INTEGER NOT NULL DEFAULT 1, "
+                + "remote_sequence INTEGER NOT NULL DEFAULT 1, "
+                + "expires_at INTEGER NOT NULL DEFAULT 0, "
+                + "key_id TEXT NOT NULL UNIQUE);");
+        db.execSQL("INSERT INTO symmetric_keys_v9 "
+                + "(_id, symmetric_key, local_sequence, remote_sequence, expires_at, key_id) "
+                + "SELECT _id, symmetric_key, local_sequence, remote_sequence, "
+                + "IFNULL(CAST(strftime('%s', expiration, 'utc') AS INTEGER) * 1000, 0), key_id "
+                + "FROM symmetric_keys");
+        db.execSQL("DROP TABLE symmetric_keys");
+        db.execSQL("ALTER TABLE symmetric_keys_v9 RENAME TO symmetric_keys");
+        db.execSQL("create trigger update_expiration after insert on symmetric_keys"
+                + " begin update symmetric_keys set expires_at = (strftime('%s', 'now') + 3600) * 1000"
+                + " where _id = new._id and expires_at = 0; end");
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.provider;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import com.auzone.account.AuzoneAccount;
+
+import com.auzone.account.provider.AuzoneAccountProvider.SymmetricKeyStoreColumns;
+
+/**
+ * Periodically deletes expired symmetric keys on a background thread.  Rows are removed in
+ * small batches so no single write transaction holds the database for long.
+ */
+class ExpiredKeySweeper implements Runnable {
+
+    private static final String TAG = ExpiredKeySweeper.class.getSimpleName();
+
+    private static final long INITIAL_DELAY_MS = 1000 * 30;
+    private static final long SWEEP_INTERVAL_MS = 1000 * 60 * 15;
+    private static final int BATCH_SIZE = 50;
+
+    private static final String EXPIRED_BATCH_SELECTION = SymmetricKeyStoreColumns._ID + " IN (SELECT "
+            + SymmetricKeyStoreColumns._ID + " FROM " + AuzoneAccountProvider.TABLE_SYMMETRIC_KEYS
+            + " WHERE " + SymmetricKeyStoreColumns.EXPIRES_AT + " < ? LIMIT " + BATCH_SIZE + ")";
+
+    private final SQLiteOpenHelper mOpenHelper;
+    private final Handler mHandler;
+
+    private long mTotalReclaimed;
+    private int mLastReclaimed;
+    private long mLastSweepTime;
+
+    public ExpiredKeySweeper(SQLiteOpenHelper openHelper) {
+        mOpenHelper = openHelper;
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    public void start() {
+        mHandler.removeCallbacks(this);
+        mHandler.postDelayed(this, INITIAL_DELAY_MS);
+    }
+
+    @Override
+    public void run() {
+        sweep();
+        mHandler.postDelayed(this, SWEEP_INTERVAL_MS);
+    }
+
+    /**
+     * Deletes every symmetric key whose expires_at has passed and returns how many rows
+     * were reclaimed.
+     */
+    public int sweep() {
+        String[] selectionArgs = new String[] { String.valueOf(System.currentTimeMillis()) };
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int reclaimed = 0;
+        int deleted;
+        do {
+            deleted = db.delete(AuzoneAccountProvider.TABLE_SYMMETRIC_KEYS, EXPIRED_BATCH_SELECTION, selectionArgs);
+            reclaimed += deleted;
+        } while (deleted == BATCH_SIZE);
+
+        synchronized (this) {
+            mLastReclaimed = reclaimed;
+            mTotalReclaimed += reclaimed;
+            mLastSweepTime = System.currentTimeMillis();
+        }
+        if (AuzoneAccount.DEBUG) Log.d(TAG, "Reclaimed " + reclaimed + " expired symmetric keys");
+        return reclaimed;
+    }
+
+    public synchronized int getLastReclaimed() {
+        return mLastReclaimed;
+    }
+
+    public synchronized long getTotalReclaimed() {
+        return mTotalReclaimed;
+    }
+
+    public synchronized long getLastSweepTime() {
+        return mLastSweepTime;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.provider;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.auzone.account.provider.AuzoneAccountProvider.InboundJournalColumns;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static com.auzone.account.provider.AuzoneAccountProvider.TABLE_INBOUND_JOURNAL;
+
+/**
+ * Durable record of inbound messages that have been accepted but not yet fully handled, so a
+ * message interrupted by the process dying is picked up again on the next start instead of
+ * being lost along with its private key.
+ */
+public class InboundJournal {
+    private static final String TAG = InboundJournal.class.getSimpleName();
+
+    /** Accepted; nothing has been acted on yet. */
+    public static final int STAGE_RECEIVED = 0;
+    /** The sequence check passed and the local sequence was bumped; it must not run again. */
+    public static final int STAGE_SEQUENCED = 1;
+    /** The command has run; only the cleanup is left. */
+    public static final int STAGE_DISPATCHED = 2;
+
+    // Older entries are dropped rather than resumed; their sessions have long expired
+    private static final long MAX_AGE_MS = 1000 * 60 * 60 * 24;
+
+    /**
+     * Resumes after which a message is given up on.  A message that kills the process every
+     * time it is handled would otherwise do so on every start until it ages out.
+     */
+    public static final int MAX_ATTEMPTS = 3;
+
+    private static final String SELECT_ENTRIES = "SELECT "
+            + InboundJournalColumns._ID + ", " + InboundJournalColumns.MESSAGE + ", "
+            + InboundJournalColumns.STAGE + ", " + InboundJournalColumns.RECEIVED_AT + ", "
+            + InboundJournalColumns.ATTEMPTS + " FROM " + TABLE_INBOUND_JOURNAL + " ORDER BY " + InboundJournalColumns._ID;
+
+    private static InboundJournal sInstance;
+
+    private final SQLiteOpenHelper mOpenHelper;
+
+    private SQLiteStatement mInsert;
+    private SQLiteStatement mUpdateStage;
+    private SQLiteStatement mUpdateAttempts;
+    private SQLiteStatement mDelete;
+
+    // Entries this process is handling; anything else in the table was left by an earlier one
+    private final HashSet<Long> mLive = new HashSet<Long>();
+
+    private InboundJournal(SQLiteOpenHelper openHelper) {
+        mOpenHelper = openHelper;
+    }
+
+    public static synchronized InboundJournal getInstance(Context context) {
+        if (sInstance == null) sInstance = new InboundJournal(DatabaseHelper.getInstance(context));
+        return sInstance;
+    }
+
+    /**
+     * Returns a journal over a private in-memory database, for tests that must not leave
+     * entries for the app to resume.
+     */
+    public static InboundJournal createInMemory(Context context) {
+        return new InboundJournal(new DatabaseHelper(context.getApplicationContext(), null));
+    }
+
+    private void compileStatements() {
+        if (mInsert != null) {
+            return;
+        }
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        mInsert = db.compileStatement("INSERT INTO " + TABLE_INBOUND_JOURNAL + " ("
+                + InboundJournalColumns.MESSAGE + ", " + InboundJournalColumns.STAGE + ", "
+                + InboundJournalColumns.RECEIVED_AT + ") VALUES (?, " + STAGE_RECEIVED + ", ?)");
+        mUpdateStage = db.compileStatement("UPDATE " + TABLE_INBOUND_JOURNAL + " SET "
+                + InboundJournalColumns.STAGE + " = ? WHERE " + InboundJournalColumns._ID + " = ?");
+        mUpdateAttempts = db.compileStatement("UPDATE " + TABLE_INBOUND_JOURNAL + " SET "
+                + InboundJournalColumns.ATTEMPTS + " = ? WHERE " + InboundJournalColumns._ID + " = ?");
+        mDelete = db.compileStatement("DELETE FROM " + TABLE_INBOUND_JOURNAL
+                + " WHERE " + InboundJournalColumns._ID + " = ?");
+    }
+
+    public synchronized Entry add(String message) {
+        compileStatements();
+        mInsert.bindString(1, message);
+        mInsert.bindLong(2, System.currentTimeMillis());
+        WriteCounter.increment();
+        long id = mInsert.executeInsert();
+        mLive.add(id);
+        return new Entry(id, message, STAGE_RECEIVED, 0);
+    }
+
+    public synchronized void setStage(Entry entry, int stage) {
+        compileStatements();
+        mUpdateStage.bindLong(1, stage);
+        mUpdateStage.bindLong(2, entry.getId());
+        WriteCounter.increment();
+        mUpdateStage.executeUpdateDelete();
+        entry.stage = stage;
+    }
+
+    /**
+     * Drops the entry once the message has been fully handled or rejected.  Safe to call more
+     * than once.
+     */
+    public synchronized void remove(Entry entry) {
+        compileStatements();
+        mDelete.bindLong(1, entry.getId());
+        WriteCounter.increment();
+        mDelete.executeUpdateDelete();
+        mLive.remove(entry.getId());
+    }
+
+    /**
+     * Returns the entries an earlier process left unfinished, oldest first, and takes them over
+     * so they are only returned once.  Entries older than MAX_AGE_MS are dropped.  Each entry's
+     * attempt count is bumped and written back before it is returned, so a resume that takes
+     * the process down still counts.
+     */
+    public synchronized List<Entry> takeAbandoned() {
+        compileStatements();
+        List<Entry> entries = new ArrayList<Entry>();
+        long cutoff = System.currentTimeMillis() - MAX_AGE_MS;
+        Cursor c = mOpenHelper.getReadableDatabase().rawQuery(SELECT_ENTRIES, null);
+        try {
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                if (mLive.contains(id)) {
+                    continue;
+                }
+                if (c.getLong(3) < cutoff) {
+                    Log.w(TAG, "Dropping stale journal entry " + id);
+                    mDelete.bindLong(1, id);
+                    WriteCounter.increment();
+                    mDelete.executeUpdateDelete();
+                    continue;
+                }
+                int attempts = c.getInt(4) + 1;
+                mUpdateAttempts.bindLong(1, attempts);
+                mUpdateAttempts.bindLong(2, id);
+                WriteCounter.increment();
+                mUpdateAttempts.executeUpdateDelete();
+                mLive.add(id);
+                entries.add(new Entry(id, c.getString(1), c.getInt(2), attempts));
+            }
+        } finally {
+            c.close();
+        }
+        return entries;
+    }
+
+    public static class Entry {
+        private final long id;
+        private final String message;
+        private int stage;
+        private final int attempts;
+
+        Entry(long id, String message, int stage, int attempts) {
+            this.id = id;
+            this.message = message;
+            this.stage = stage;
+            this.attempts = attempts;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public int getStage() {
+            return stage;
+        }
+
+        /**
+         * The number of times this entry has been resumed, including the current one.
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.provider;
+
+import com.auzone.account.util.AuzoneAccountUtils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Merkle digest over a set of key ids.
+ *
+ * Each key id hashes (SHA-256) into one of 256 buckets, chosen by the first byte of its hash.
+ * A bucket's leaf is the XOR of its members' hashes, so adding or removing a key only touches
+ * one leaf and the DEPTH nodes above it.  Two sides holding the same structure can find the
+ * buckets that differ by comparing node hashes from the root down, one level per exchange.
+ */
+public class KeySetDigest {
+
+    public static final int DEPTH = 8;
+    public static final int BUCKETS = 1 << DEPTH;
+
+    private static final int HASH_LENGTH = 32;
+
+    // Heap layout: node i has children 2i + 1 and 2i + 2, leaves start at BUCKETS - 1
+    private final byte[][] mNodes = new byte[2 * BUCKETS - 1][];
+    private final MessageDigest mDigest;
+    private int mSize;
+
+    public KeySetDigest() {
+        try {
+            mDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        clear();
+    }
+
+    public void clear() {
+        for (int i = BUCKETS - 1; i < mNodes.length; i++) {
+            mNodes[i] = new byte[HASH_LENGTH];
+        }
+        for (int i = BUCKETS - 2; i >= 0; i--) {
+            mNodes[i] = hashChildren(i);
+        }
+        mSize = 0;
+    }
+
+    /**
+     * The caller must not add a key id that is already in the set.
+     */
+    public void add(String keyId) {
+        toggle(keyId);
+        mSize++;
+    }
+
+    /**
+     * The caller must only remove key ids that are in the set.
+     */
+    public void remove(String keyId) {
+        toggle(keyId);
+        mSize--;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public String getRoot() {
+        return AuzoneAccountUtils.encodeHex(mNodes[0]);
+    }
+
+    /**
+     * Hash of the node at index within depth, where depth 0 is the root and DEPTH the leaves.
+     */
+    public String getNode(int depth, int index) {
+        if (depth < 0 || depth > DEPTH || index < 0 || index >= 1 << depth) {
+            throw new IllegalArgumentException("No node " + index + " at depth " + depth);
+        }
+        return AuzoneAccountUtils.encodeHex(mNodes[(1 << depth) - 1 + index]);
+    }
+
+    /**
+     * Bucket a key id falls into, for narrowing a diff down to the keys in differing buckets.
+     */
+    public int getBucket(String keyId) {
+        return mDigest.digest(keyId.getBytes())[0] & 0xff;
+    }
+
+    private void toggle(String keyId) {
+        byte[] hash = mDigest.digest(keyId.getBytes());
+        int node = BUCKETS - 1 + (hash[0] & 0xff);
+        byte[] leaf = mNodes[node];
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            leaf[i] ^= hash[i];
+        }
+        while (node > 0) {
+            node = (node - 1) / 2;
+            mNodes[node] = hashChildren(node);
+        }
+    }
+
+    private byte[] hashChildren(int node) {
+        mDigest.update(mNodes[2 * node + 1]);
+        mDigest.update(mNodes[2 * node + 2]);
+        return mDigest.digest();
+    }
+}
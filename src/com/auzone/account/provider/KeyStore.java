@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import com.auzone.account.provider.AuzoneAccountProvider.ECDHKeyStoreColumns;
+import com.auzone.account.provider.AuzoneAccountProvider.SymmetricKeyStoreColumns;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.auzone.account.provider.AuzoneAccountProvider.TABLE_ECDH_KEYS;
+import static com.auzone.account.provider.AuzoneAccountProvider.TABLE_SYMMETRIC_KEYS;
+
+/**
+ * Typed, in-process access to the key tables.  Everything in this app runs in one process, so
+ * callers use this directly instead of going through ContentResolver; AuzoneAccountProvider
+ * stays as an adapter over the same database.
+ */
+public class KeyStore {
+
+    private static final String SELECT_SYMMETRIC_KEY = "SELECT "
+            + SymmetricKeyStoreColumns.KEY + ", "
+            + SymmetricKeyStoreColumns.LOCAL_SEQUENCE + ", "
+            + SymmetricKeyStoreColumns.REMOTE_SEQUENCE + ", "
+            + SymmetricKeyStoreColumns.EXPIRES_AT
+            + " FROM " + TABLE_SYMMETRIC_KEYS
+            + " WHERE " + SymmetricKeyStoreColumns.KEY_ID + " = ? AND " + SymmetricKeyStoreColumns.EXPIRES_AT + " > ?";
+    private static final String SELECT_PRIVATE_KEY = "SELECT " + ECDHKeyStoreColumns.PRIVATE
+            + " FROM " + TABLE_ECDH_KEYS + " WHERE " + ECDHKeyStoreColumns.KEY_ID + " = ?";
+    private static final String SELECT_PUBLIC_KEYS = "SELECT "
+            + ECDHKeyStoreColumns.KEY_ID + ", " + ECDHKeyStoreColumns.PUBLIC + ", " + ECDHKeyStoreColumns.UPLOADED + ", "
+            + ECDHKeyStoreColumns.ENCODED + ", " + ECDHKeyStoreColumns.SIGNATURE
+            + " FROM " + TABLE_ECDH_KEYS;
+    private static final String SELECT_UPLOADED_KEY_IDS = "SELECT " + ECDHKeyStoreColumns.KEY_ID
+            + " FROM " + TABLE_ECDH_KEYS + " WHERE " + ECDHKeyStoreColumns.UPLOADED + " = 1";
+    private static final String SELECT_PENDING_PUBLIC_KEYS = SELECT_PUBLIC_KEYS
+            + " WHERE " + ECDHKeyStoreColumns.UPLOADED + " = 0 ORDER BY " + ECDHKeyStoreColumns.KEY_ID;
+
+    private static KeyStore sInstance;
+
+    private final SQLiteOpenHelper mOpenHelper;
+
+    private SQLiteStatement mInsertSymmetricKey;
+    private SQLiteStatement mDeleteSymmetricKey;
+    private SQLiteStatement mIncrementLocalSequence;
+    private SQLiteStatement mIncrementRemoteSequence;
+    private SQLiteStatement mInsertKeyPair;
+    private SQLiteStatement mDeleteKeyPair;
+    private SQLiteStatement mDeleteUploadedKeyPair;
+    private SQLiteStatement mMarkKeyPairUploaded;
+    private SQLiteStatement mUpdateSignature;
+    private SQLiteStatement mCountKeyPairs;
+
+    // Digest of the uploaded key ids, loaded on first use and kept current by every write below
+    private KeySetDigest mUploadedKeysDigest;
+
+    private KeyStore(SQLiteOpenHelper openHelper) {
+        mOpenHelper = openHelper;
+    }
+
+    public static synchronized KeyStore getInstance(Context context) {
+        if (sInstance == null) sInstance = new KeyStore(DatabaseHelper.getInstance(context));
+        return sInstance;
+    }
+
+    /**
+     * Returns a KeyStore over a private in-memory database, for tests that must not touch the
+     * device's keys.
+     */
+    public static KeyStore createInMemory(Context context) {
+        return new KeyStore(new DatabaseHelper(context.getApplicationContext(), null));
+    }
+
+    private synchronized void compileStatements() {
+        if (mInsertSymmetricKey != null) {
+            return;
+        }
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        mInsertSymmetricKey = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_SYMMETRIC_KEYS + " ("
+                + SymmetricKeyStoreColumns.KEY_ID + ", " + SymmetricKeyStoreColumns.KEY + ") VALUES (?, ?)");
+        mDeleteSymmetricKey = db.compileStatement("DELETE FROM " + TABLE_SYMMETRIC_KEYS
+                + " WHERE " + SymmetricKeyStoreColumns.KEY_ID + " = ?");
+        mIncrementLocalSequence = compileIncrement(db, SymmetricKeyStoreColumns.LOCAL_SEQUENCE);
+        mIncrementRemoteSequence = compileIncrement(db, SymmetricKeyStoreColumns.REMOTE_SEQUENCE);
+        mInsertKeyPair = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_ECDH_KEYS + " ("
+                + ECDHKeyStoreColumns.KEY_ID + ", " + ECDHKeyStoreColumns.PRIVATE + ", "
+                + ECDHKeyStoreColumns.PUBLIC + ", " + ECDHKeyStoreColumns.ENCODED + ", "
+                + ECDHKeyStoreColumns.SIGNATURE + ") VALUES (?, ?, ?, ?, ?)");
+        mUpdateSignature = db.compileStatement("UPDATE " + TABLE_ECDH_KEYS + " SET "
+                + ECDHKeyStoreColumns.ENCODED + " = ?, " + ECDHKeyStoreColumns.SIGNATURE + " = ? WHERE "
+                + ECDHKeyStoreColumns.KEY_ID + " = ?");
+        mDeleteKeyPair = db.compileStatement("DELETE FROM " + TABLE_ECDH_KEYS
+                + " WHERE " + ECDHKeyStoreColumns.KEY_ID + " = ?");
+        mDeleteUploadedKeyPair = db.compileStatement("DELETE FROM " + TABLE_ECDH_KEYS
+                + " WHERE " + ECDHKeyStoreColumns.KEY_ID + " = ? AND " + ECDHKeyStoreColumns.UPLOADED + " = 1");
+        mMarkKeyPairUploaded = db.compileStatement("UPDATE " + TABLE_ECDH_KEYS + " SET "
+                + ECDHKeyStoreColumns.UPLOADED + " = 1 WHERE " + ECDHKeyStoreColumns.KEY_ID + " = ? AND "
+                + ECDHKeyStoreColumns.UPLOADED + " = 0");
+        mCountKeyPairs = db.compileStatement("SELECT COUNT(*) FROM " + TABLE_ECDH_KEYS);
+    }
+
+    private static SQLiteStatement compileIncrement(SQLiteDatabase db, String column) {
+        return db.compileStatement("UPDATE " + TABLE_SYMMETRIC_KEYS + " SET " + column + " = " + column
+                + " + 1 WHERE " + SymmetricKeyStoreColumns.KEY_ID + " = ?");
+    }
+
+    /**
+     * Returns the unexpired session for keyId, or null if there is none.
+     */
+    public SymmetricKey getSymmetricKey(String keyId) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Cursor c = db.rawQuery(SELECT_SYMMETRIC_KEY, new String[] { keyId, String.valueOf(System.currentTimeMillis()) });
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            return new SymmetricKey(c.getBlob(0), c.getInt(1), c.getInt(2), c.getLong(3));
+        } finally {
+            c.close();
+        }
+    }
+
+    public synchronized boolean putSymmetricKey(String keyId, byte[] symmetricKey) {
+        compileStatements();
+        mInsertSymmetricKey.bindString(1, keyId);
+        mInsertSymmetricKey.bindBlob(2, symmetricKey);
+        WriteCounter.increment();
+        return mInsertSymmetricKey.executeInsert() != -1;
+    }
+
+    public synchronized int deleteSymmetricKey(String keyId) {
+        compileStatements();
+        mDeleteSymmetricKey.bindString(1, keyId);
+        WriteCounter.increment();
+        return mDeleteSymmetricKey.executeUpdateDelete();
+    }
+
+    public synchronized void incrementLocalSequence(String keyId) {
+        compileStatements();
+        mIncrementLocalSequence.bindString(1, keyId);
+        WriteCounter.increment();
+        mIncrementLocalSequence.executeUpdateDelete();
+    }
+
+    public synchronized void incrementRemoteSequence(String keyId) {
+        compileStatements();
+        mIncrementRemoteSequence.bindString(1, keyId);
+        WriteCounter.increment();
+        mIncrementRemoteSequence.executeUpdateDelete();
+    }
+
+    public byte[] getPrivateKey(String keyId) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Cursor c = db.rawQuery(SELECT_PRIVATE_KEY, new String[] { keyId });
+        try {
+            return c.moveToFirst() ? c.getBlob(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    public List<ECDHKey> getPublicKeys() {
+        return queryPublicKeys(SELECT_PUBLIC_KEYS);
+    }
+
+    /**
+     * Returns the keys the server has not acknowledged yet, sorted by key_id.
+     */
+    public List<ECDHKey> getPendingPublicKeys() {
+        return queryPublicKeys(SELECT_PENDING_PUBLIC_KEYS);
+    }
+
+    private List<ECDHKey> queryPublicKeys(String sql) {
+        List<ECDHKey> keys = new ArrayList<ECDHKey>();
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Cursor c = db.rawQuery(sql, null);
+        try {
+            while (c.moveToNext()) {
+                keys.add(new ECDHKey(c.getString(0), c.getBlob(1), c.getInt(2) != 0, c.getString(3), c.getString(4)));
+            }
+        } finally {
+            c.close();
+        }
+        return keys;
+    }
+
+    public synchronized void markUploaded(Collection<String> keyIds) {
+        compileStatements();
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        // Loaded before any row changes, so a lazy load cannot already include them
+        KeySetDigest digest = getUploadedKeysDigest();
+        db.beginTransaction();
+        try {
+            for (String keyId : keyIds) {
+                mMarkKeyPairUploaded.bindString(1, keyId);
+                WriteCounter.increment();
+                if (mMarkKeyPairUploaded.executeUpdateDelete() > 0) {
+                    digest.add(keyId);
+                }
+            }
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            mUploadedKeysDigest = null;
+            throw e;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the ids of the keys the server has acknowledged.
+     */
+    public Set<String> getUploadedKeyIds() {
+        Set<String> keyIds = new HashSet<String>();
+        Cursor c = mOpenHelper.getReadableDatabase().rawQuery(SELECT_UPLOADED_KEY_IDS, null);
+        try {
+            while (c.moveToNext()) {
+                keyIds.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return keyIds;
+    }
+
+    /**
+     * Merkle root over the key ids the server has acknowledged.  Cheap to call; the digest is
+     * updated incrementally as keys are marked uploaded or deleted.
+     */
+    public synchronized String getUploadedKeysRoot() {
+        return getUploadedKeysDigest().getRoot();
+    }
+
+    private KeySetDigest getUploadedKeysDigest() {
+        if (mUploadedKeysDigest == null) {
+            KeySetDigest digest = new KeySetDigest();
+            Cursor c = mOpenHelper.getReadableDatabase().rawQuery(SELECT_UPLOADED_KEY_IDS, null);
+            try {
+                while (c.moveToNext()) {
+                    digest.add(c.getString(0));
+                }
+            } finally {
+                c.close();
+            }
+            mUploadedKeysDigest = digest;
+        }
+        return mUploadedKeysDigest;
+    }
+
+    private int deleteKeyPairLocked(String keyId) {
+        // Loaded before the delete, see markUploaded
+        KeySetDigest digest = getUploadedKeysDigest();
+        mDeleteUploadedKeyPair.bindString(1, keyId);
+        WriteCounter.increment();
+        if (mDeleteUploadedKeyPair.executeUpdateDelete() > 0) {
+            digest.remove(keyId);
+            return 1;
+        }
+        mDeleteKeyPair.bindString(1, keyId);
+        WriteCounter.increment();
+        return mDeleteKeyPair.executeUpdateDelete();
+    }
+
+    /**
+     * @param signature may be null if no account is configured yet, see putSignatures
+     */
+    public synchronized boolean putKeyPair(String keyId, byte[] privateKey, byte[] publicKey,
+            String encoded, String signature) {
+        compileStatements();
+        mInsertKeyPair.clearBindings();
+        mInsertKeyPair.bindString(1, keyId);
+        mInsertKeyPair.bindBlob(2, privateKey);
+        mInsertKeyPair.bindBlob(3, publicKey);
+        mInsertKeyPair.bindString(4, encoded);
+        if (signature != null) mInsertKeyPair.bindString(5, signature);
+        WriteCounter.increment();
+        return mInsertKeyPair.executeInsert() != -1;
+    }
+
+    /**
+     * Stores the encoded form and signature of each key.
+     */
+    public synchronized void putSignatures(Collection<ECDHKey> keys) {
+        compileStatements();
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ECDHKey key : keys) {
+                mUpdateSignature.bindString(1, key.getEncoded());
+                mUpdateSignature.bindString(2, key.getSignature());
+                mUpdateSignature.bindString(3, key.getKeyId());
+                WriteCounter.increment();
+                mUpdateSignature.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Drops every stored signature and marks every key pending again, for when the account or
+     * its HMAC secret changes and the server no longer holds anything we uploaded.
+     */
+    public synchronized int resetUploadState() {
+        ContentValues values = new ContentValues();
+        values.putNull(ECDHKeyStoreColumns.SIGNATURE);
+        values.put(ECDHKeyStoreColumns.UPLOADED, 0);
+        mUploadedKeysDigest = null;
+        WriteCounter.increment();
+        return mOpenHelper.getWritableDatabase().update(TABLE_ECDH_KEYS, values, null, null);
+    }
+
+    public synchronized int deleteKeyPair(String keyId) {
+        compileStatements();
+        return deleteKeyPairLocked(keyId);
+    }
+
+    public synchronized int deleteKeyPairs(Collection<String> keyIds) {
+        compileStatements();
+        int deleted = 0;
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String keyId : keyIds) {
+                deleted += deleteKeyPairLocked(keyId);
+            }
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            mUploadedKeysDigest = null;
+            throw e;
+        } finally {
+            db.endTransaction();
+        }
+        return deleted;
+    }
+
+    public synchronized int deleteAllKeyPairs() {
+        mUploadedKeysDigest = null;
+        WriteCounter.increment();
+        return mOpenHelper.getWritableDatabase().delete(TABLE_ECDH_KEYS, null, null);
+    }
+
+    public synchronized int getKeyPairCount() {
+        compileStatements();
+        return (int) mCountKeyPairs.simpleQueryForLong();
+    }
+
+    public static class SymmetricKey {
+        private final byte[] key;
+        private final int localSequence;
+        private final int remoteSequence;
+        private final long expiresAt;
+
+        public SymmetricKey(byte[] key, int localSequence, int remoteSequence, long expiresAt) {
+            this.key = key;
+            this.localSequence = localSequence;
+            this.remoteSequence = remoteSequence;
+            this.expiresAt = expiresAt;
+        }
+
+        public byte[] getKey() {
+            return key;
+        }
+
+        public int getLocalSequence() {
+            return localSequence;
+        }
+
+        public int getRemoteSequence() {
+            return remoteSequence;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+
+    public static class ECDHKey {
+        private final String keyId;
+        private final byte[] publicKey;
+        private final boolean uploaded;
+        private final String encoded;
+        private final String signature;
+
+        public ECDHKey(String keyId, byte[] publicKey, boolean uploaded, String encoded, String signature) {
+            this.keyId = keyId;
+            this.publicKey = publicKey;
+            this.uploaded = uploaded;
+            this.encoded = encoded;
+            this.signature = signature;
+        }
+
+        /**
+         * Hex encoded public key, or null for keys stored before it was recorded.
+         */
+        public String getEncoded() {
+            return encoded;
+        }
+
+        /**
+         * HMAC signature of getEncoded(), or null if it has not been computed yet.
+         */
+        public String getSignature() {
+            return signature;
+        }
+
+        public boolean isUploaded() {
+            return uploaded;
+        }
+
+        public String getKeyId() {
+            return keyId;
+        }
+
+        public byte[] getPublicKey() {
+            return publicKey;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.provider;
+
+/**
+ * Counts the write statements KeyStore and InboundJournal execute on each thread, so a caller
+ * can tell what a unit of work cost by reading the count before and after it.
+ */
+public class WriteCounter {
+
+    private static final ThreadLocal<int[]> sCount = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    private WriteCounter() {}
+
+    static void increment() {
+        sCount.get()[0]++;
+    }
+
+    /**
+     * Writes made by the calling thread so far.
+     */
+    public static int get() {
+        return sCount.get()[0];
+    }
+}
@@ -90,6 +90,10 @@ public class AuzoneAccountUtils {
         setBackoff(prefs, AuzoneAccount.DEFAULT_BACKOFF_MS);
     }
 
+    public static boolean isBackoffExhausted(SharedPreferences prefs) {
+        return getBackoff(prefs) >= AuzoneAccount.MAX_BACKOFF_MS;
+    }
+
     private static int getBackoff(SharedPreferences prefs) {
         return prefs.getInt(AuzoneAccount.BACKOFF_MS, AuzoneAccount.DEFAULT_BACKOFF_MS);
     }
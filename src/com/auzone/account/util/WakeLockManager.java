@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.util;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+import com.auzone.account.AuzoneAccount;
+
+import java.io.Closeable;
+import java.io.PrintWriter;
+import java.util.HashMap;
+
+/**
+ * Hands out partial wakelocks as scopes that are released with close(), typically from a
+ * try/finally or try-with-resources block.  Scopes with the same tag share one wakelock, which
+ * is held while any of them is open.  Every scope has a maximum hold time after which it is
+ * released even if close() was never called, and hold time is accounted per tag for dumpsys.
+ */
+public class WakeLockManager {
+    private static final String TAG = WakeLockManager.class.getSimpleName();
+
+    private static WakeLockManager sInstance;
+
+    private final PowerManager mPowerManager;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final HashMap<String, TagState> mTags = new HashMap<String, TagState>();
+
+    private WakeLockManager(Context context) {
+        mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    }
+
+    public static synchronized WakeLockManager getInstance(Context context) {
+        if (sInstance == null) sInstance = new WakeLockManager(context.getApplicationContext());
+        return sInstance;
+    }
+
+    /**
+     * Keeps the device awake until the returned scope is closed or maxHoldMs has passed,
+     * whichever comes first.
+     */
+    public synchronized Scope acquire(String tag, long maxHoldMs) {
+        TagState state = mTags.get(tag);
+        if (state == null) {
+            state = new TagState(tag, mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, tag));
+            mTags.put(tag, state);
+        }
+        long now = SystemClock.elapsedRealtime();
+        final Scope scope = new Scope(state, now, now + maxHoldMs);
+        state.acquisitions++;
+        if (state.refs++ == 0) {
+            state.heldSince = now;
+        }
+        if (scope.deadline > state.deadline) {
+            // Only a backstop; scopes are normally released by close() or the expiry below first.
+            state.deadline = scope.deadline;
+            state.wakeLock.acquire(state.deadline - now);
+        }
+        if (AuzoneAccount.DEBUG) Log.v(TAG, "Acquired " + tag + " refs=" + state.refs);
+        mHandler.postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                release(scope, true);
+            }
+        }, scope, SystemClock.uptimeMillis() + maxHoldMs);
+        return scope;
+    }
+
+    private synchronized void release(Scope scope, boolean expired) {
+        if (scope.released) {
+            return;
+        }
+        scope.released = true;
+        mHandler.removeCallbacksAndMessages(scope);
+        TagState state = scope.state;
+        long now = SystemClock.elapsedRealtime();
+        state.released++;
+        state.scopeHeldMs += now - scope.acquiredAt;
+        state.maxScopeMs = Math.max(state.maxScopeMs, now - scope.acquiredAt);
+        if (expired) {
+            state.expired++;
+            Log.w(TAG, "Wakelock " + state.tag + " held past its limit, releasing");
+        }
+        if (--state.refs == 0) {
+            state.totalHeldMs += now - state.heldSince;
+            state.deadline = 0;
+            if (state.wakeLock.isHeld()) state.wakeLock.release();
+        }
+        if (AuzoneAccount.DEBUG) Log.v(TAG, "Released " + state.tag + " refs=" + state.refs);
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Wakelocks:");
+        long now = SystemClock.elapsedRealtime();
+        for (TagState state : mTags.values()) {
+            long totalHeldMs = state.totalHeldMs + (state.refs > 0 ? now - state.heldSince : 0);
+            // held is how long the wakelock itself was held; avg and max are per scope, and
+            // overlapping scopes share the same held time.
+            pw.println("  " + state.tag + ": refs=" + state.refs
+                    + " acquired=" + state.acquisitions + " expired=" + state.expired
+                    + " held=" + totalHeldMs + " ms"
+                    + " avg=" + (state.released > 0 ? state.scopeHeldMs / state.released : 0) + " ms"
+                    + " max=" + state.maxScopeMs + " ms");
+        }
+    }
+
+    private static class TagState {
+        final String tag;
+        final PowerManager.WakeLock wakeLock;
+        int refs;
+        long heldSince;
+        long deadline;
+        long acquisitions;
+        long released;
+        int expired;
+        long totalHeldMs;
+        long scopeHeldMs;
+        long maxScopeMs;
+
+        TagState(String tag, PowerManager.WakeLock wakeLock) {
+            this.tag = tag;
+            this.wakeLock = wakeLock;
+            // Counting is done here, so a stray release can never underflow the wakelock.
+            wakeLock.setReferenceCounted(false);
+        }
+    }
+
+    /**
+     * One hold on a tag's wakelock.  close() may be called any number of times from any thread.
+     */
+    public class Scope implements Closeable {
+        private final TagState state;
+        private final long acquiredAt;
+        private final long deadline;
+        private boolean released;
+
+        private Scope(TagState state, long acquiredAt, long deadline) {
+            this.state = state;
+            this.acquiredAt = acquiredAt;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void close() {
+            release(this, false);
+        }
+    }
+}
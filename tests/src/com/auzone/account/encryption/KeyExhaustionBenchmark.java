@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.encryption;
+
+import android.content.Context;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import com.auzone.account.provider.KeyStore;
+import com.auzone.account.util.AuzoneAccountUtils;
+
+/**
+ * Compares the old and new handling of public_keys_exhausted.  The old handling wiped
+ * ecdh_keys and regenerated and re-uploaded the whole pool.  The new one reconciles, keeps
+ * unconsumed keys, generates only the shortfall and uploads only what the server lacks.
+ *
+ * Both run against KeyPipelineHarness's stub server from the same starting state: a pool of
+ * POOL_SIZE uploaded keys, of which the server has handed out some, plus PENDING_KEYS
+ * generated since the last upload.  CPU time is the calling thread's, which does the key
+ * generation, signing and request encoding.
+ *
+ * Needs an account to be configured so keys can be signed; the benchmark is skipped otherwise.
+ */
+@LargeTest
+public class KeyExhaustionBenchmark extends InstrumentationTestCase {
+    private static final String TAG = KeyExhaustionBenchmark.class.getSimpleName();
+
+    private static final int POOL_SIZE = 25;
+    private static final int PENDING_KEYS = 5;
+
+    private Context mContext;
+    private KeyPipelineHarness.StubServer mServer;
+    private byte[] mHmacSecret;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new KeyPipelineHarness.IsolatedContext(getInstrumentation().getTargetContext());
+        mServer = new KeyPipelineHarness.StubServer(mContext, 0, 0f);
+        mHmacSecret = AuzoneAccountUtils.getHmacSecret(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        KeyPipelineHarness.cancelRetry(mContext);
+        super.tearDown();
+    }
+
+    /**
+     * The server has handed out every key it held.
+     */
+    public void testAllConsumed() throws Exception {
+        compare(POOL_SIZE);
+    }
+
+    /**
+     * The report raced an upload, so the server still holds some of the keys.
+     */
+    public void testPartlyConsumed() throws Exception {
+        compare(POOL_SIZE / 2);
+    }
+
+    private void compare(int consumed) throws Exception {
+        if (AuzoneAccountUtils.getAuzoneAccountAccount(mContext) == null || mHmacSecret == null) {
+            Log.w(TAG, "No AuzoneAccount configured, skipping");
+            return;
+        }
+
+        KeyStore keyStore = prepare(consumed);
+        long cpu = Debug.threadCpuTimeNanos();
+        keyStore.deleteAllKeyPairs();
+        KeyPipelineHarness.generateKeys(keyStore, POOL_SIZE, mHmacSecret);
+        KeyPipelineHarness.uploadAll(mContext, mServer, keyStore);
+        long wipeCpuMs = (Debug.threadCpuTimeNanos() - cpu) / 1000000;
+        long wipeBytes = mServer.getUploadBytes();
+
+        keyStore = prepare(consumed);
+        cpu = Debug.threadCpuTimeNanos();
+        KeyPipelineHarness.reconcile(mContext, mServer, keyStore);
+        int generated = POOL_SIZE - keyStore.getKeyPairCount();
+        KeyPipelineHarness.generateKeys(keyStore, generated, mHmacSecret);
+        KeyPipelineHarness.uploadAll(mContext, mServer, keyStore);
+        long reconcileCpuMs = (Debug.threadCpuTimeNanos() - cpu) / 1000000;
+        long reconcileBytes = mServer.getUploadBytes();
+
+        Log.i(TAG, consumed + " of " + POOL_SIZE + " consumed, " + PENDING_KEYS + " pending: "
+                + "wipe generated " + POOL_SIZE + " keys in " + wipeCpuMs + " ms cpu, sent " + wipeBytes + " bytes; "
+                + "reconcile generated " + generated + " keys in " + reconcileCpuMs + " ms cpu, sent "
+                + reconcileBytes + " bytes");
+        assertEquals(POOL_SIZE, keyStore.getKeyPairCount());
+        assertTrue(generated <= POOL_SIZE - PENDING_KEYS);
+        assertTrue(reconcileBytes <= wipeBytes);
+    }
+
+    /**
+     * Builds the state the exhaustion report arrives in and resets the server's counters.
+     */
+    private KeyStore prepare(int consumed) throws Exception {
+        KeyStore keyStore = KeyStore.createInMemory(mContext);
+        mServer.reset();
+        KeyPipelineHarness.generateKeys(keyStore, POOL_SIZE, mHmacSecret);
+        KeyPipelineHarness.uploadAll(mContext, mServer, keyStore);
+        mServer.consume(consumed);
+        KeyPipelineHarness.generateKeys(keyStore, PENDING_KEYS, mHmacSecret);
+        mServer.resetCounters();
+        return keyStore;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.encryption;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.auzone.account.api.request.AddPublicKeysRequestBody;
+import com.auzone.account.api.response.AddPublicKeysResponse;
+import com.auzone.account.api.response.GetPublicKeyIdsResponse;
+import com.auzone.account.auth.AuthClient;
+import com.auzone.account.provider.KeyStore;
+import com.auzone.account.util.AuzoneAccountUtils;
+import com.auzone.account.util.EncryptionUtils;
+import com.google.gson.Gson;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Shared pieces for driving the key pipeline against a stub server without touching the
+ * device's own keys or services.
+ */
+final class KeyPipelineHarness {
+    private static final String TAG = KeyPipelineHarness.class.getSimpleName();
+
+    private static final String PREFERENCES = "key_pipeline_harness";
+    private static final long TIMEOUT_MS = 1000 * 60 * 10;
+
+    private KeyPipelineHarness() {}
+
+    /**
+     * Generates, signs and stores count keys the way GeneratePublicKeysTask does.
+     */
+    static void generateKeys(KeyStore keyStore, int count, byte[] hmacSecret) {
+        for (int i = 0; i < count; i++) {
+            ECKeyPair keyPair = EncryptionUtils.ECDH.generateKeyPair();
+            byte[] publicKey = keyPair.getPublicKey().getQ().getEncoded();
+            String encoded = AuzoneAccountUtils.encodeHex(publicKey);
+            keyStore.putKeyPair(keyPair.getKeyId(), keyPair.getPrivateKey().getD().toByteArray(), publicKey,
+                    encoded, EncryptionUtils.HMAC.getSignature(hmacSecret, encoded));
+        }
+    }
+
+    /**
+     * Runs upload passes until nothing is pending, retrying failures at once instead of
+     * waiting for the backoff alarm.  A retry pass skips the refill, which is sized for the
+     * real pool, and only uploads.
+     */
+    static void uploadAll(Context context, StubServer server, KeyStore keyStore) throws InterruptedException {
+        // Its own coordinator and pool state, so an upload the app has in flight neither blocks
+        // these passes nor picks up their follow-ups
+        GeneratePublicKeysTask task = new GeneratePublicKeysTask(context, server, keyStore,
+                new PublicKeyUploadCoordinator(), KeyPoolController.create(server.getEncryptionPreferences()));
+        Intent upload = ECDHKeyService.getIntent(context, ECDHKeyService.ACTION_GENERATE);
+        upload.putExtra(ECDHKeyService.EXTRA_RETRY, true);
+        long start = SystemClock.elapsedRealtime();
+        while (keyStore.getPendingPublicKeys().size() > 0) {
+            if (SystemClock.elapsedRealtime() - start > TIMEOUT_MS) {
+                throw new AssertionError("Upload timed out with " + keyStore.getPendingPublicKeys().size()
+                        + " keys pending");
+            }
+            task.start(upload);
+            server.awaitIdle();
+        }
+    }
+
+    /**
+     * Runs a forced reconciliation of keyStore against the server and waits for it to finish.
+     */
+    static void reconcile(Context context, StubServer server, KeyStore keyStore) throws InterruptedException {
+        new PublicKeyReconciler(context, server, keyStore,
+                KeyPoolController.create(server.getEncryptionPreferences())).start(true);
+        server.awaitIdle();
+    }
+
+    /**
+     * A failed upload always leaves a backoff alarm behind; it would retry on the real store.
+     */
+    static void cancelRetry(Context context) {
+        Intent retry = ECDHKeyService.getIntent(context, ECDHKeyService.ACTION_GENERATE);
+        PendingIntent pendingIntent = PendingIntent.getService(context, 0, retry, PendingIntent.FLAG_NO_CREATE);
+        if (pendingIntent != null) {
+            ((AlarmManager) context.getSystemService(Context.ALARM_SERVICE)).cancel(pendingIntent);
+            pendingIntent.cancel();
+        }
+    }
+
+    /**
+     * Keeps the pipeline's follow-up passes from starting ECDHKeyService on the real store.
+     */
+    static class IsolatedContext extends ContextWrapper {
+        IsolatedContext(Context base) {
+            super(base);
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public ComponentName startService(Intent intent) {
+            return intent.getComponent();
+        }
+    }
+
+    /**
+     * Answers add_public_keys and get_public_key_ids in process, on its own thread, after the
+     * configured latency.  Responses are decoded from JSON like the real ones.
+     */
+    static class StubServer extends AuthClient {
+        private final Gson mGson = new Gson();
+        private final Random mRandom = new Random(0);
+        private final HandlerThread mThread;
+        private final Handler mHandler;
+        private final SharedPreferences mPrefs;
+        private final long mLatencyMs;
+        private final float mFailureRate;
+
+        private final Set<String> mKeyIds = new HashSet<String>();
+        private int mInFlight;
+        private int mUploads;
+        private long mUploadBytes;
+        private int mFailures;
+
+        StubServer(Context context, long latencyMs, float failureRate) {
+            super(context);
+            mLatencyMs = latencyMs;
+            mFailureRate = failureRate;
+            mPrefs = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+            mThread = new HandlerThread(TAG);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+
+        @Override
+        public SharedPreferences getEncryptionPreferences() {
+            return mPrefs;
+        }
+
+        @Override
+        public void addPublicKeys(AddPublicKeysRequestBody requestBody,
+                final Response.Listener<AddPublicKeysResponse> listener, final Response.ErrorListener errorListener) {
+            final byte[] body = requestBody.getBody();
+            synchronized (this) {
+                mInFlight++;
+                mUploads++;
+                mUploadBytes += body.length;
+            }
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (shouldFail()) {
+                            errorListener.onErrorResponse(new VolleyError("Injected failure"));
+                            return;
+                        }
+                        List<String> keyIds = parseKeyIds(body);
+                        synchronized (StubServer.this) {
+                            mKeyIds.addAll(keyIds);
+                        }
+                        AddPublicKeysResponse response = mGson.fromJson(
+                                toJson("updated", keyIds), AddPublicKeysResponse.class);
+                        response.statusCode = 200;
+                        listener.onResponse(response);
+                    } catch (JSONException e) {
+                        throw new AssertionError(e);
+                    } finally {
+                        onRequestFinished();
+                    }
+                }
+            }, mLatencyMs);
+        }
+
+        @Override
+        public void getPublicKeyIds(final Response.Listener<GetPublicKeyIdsResponse> listener,
+                final Response.ErrorListener errorListener) {
+            synchronized (this) {
+                mInFlight++;
+            }
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        List<String> keyIds;
+                        synchronized (StubServer.this) {
+                            keyIds = new ArrayList<String>(mKeyIds);
+                        }
+                        GetPublicKeyIdsResponse response = mGson.fromJson(
+                                toJson("public_key_ids", keyIds), GetPublicKeyIdsResponse.class);
+                        response.setStatusCode(200);
+                        listener.onResponse(response);
+                    } catch (JSONException e) {
+                        throw new AssertionError(e);
+                    } finally {
+                        onRequestFinished();
+                    }
+                }
+            }, mLatencyMs);
+        }
+
+        synchronized void reset() {
+            mKeyIds.clear();
+            resetCounters();
+            mPrefs.edit().clear().commit();
+        }
+
+        /**
+         * Clears the request counters but keeps the keys the server holds.
+         */
+        synchronized void resetCounters() {
+            mUploads = 0;
+            mUploadBytes = 0;
+            mFailures = 0;
+        }
+
+        /**
+         * Hands out count keys, as if browsers had encrypted to them, and returns their ids.
+         */
+        synchronized Set<String> consume(int count) {
+            Set<String> consumed = new HashSet<String>();
+            Iterator<String> it = mKeyIds.iterator();
+            while (it.hasNext() && consumed.size() < count) {
+                consumed.add(it.next());
+                it.remove();
+            }
+            return consumed;
+        }
+
+        synchronized void awaitIdle() throws InterruptedException {
+            long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+            while (mInFlight > 0 && SystemClock.elapsedRealtime() < deadline) {
+                wait(deadline - SystemClock.elapsedRealtime());
+            }
+        }
+
+        synchronized int getKeyCount() {
+            return mKeyIds.size();
+        }
+
+        synchronized int getUploads() {
+            return mUploads;
+        }
+
+        synchronized long getUploadBytes() {
+            return mUploadBytes;
+        }
+
+        synchronized int getFailures() {
+            return mFailures;
+        }
+
+        void shutdown() {
+            mThread.quit();
+        }
+
+        private synchronized boolean shouldFail() {
+            if (mRandom.nextFloat() >= mFailureRate) {
+                return false;
+            }
+            mFailures++;
+            return true;
+        }
+
+        private synchronized void onRequestFinished() {
+            mInFlight--;
+            notifyAll();
+        }
+
+        private static List<String> parseKeyIds(byte[] body) throws JSONException {
+            JSONArray publicKeys;
+            try {
+                publicKeys = new JSONObject(new String(body, "UTF-8")).getJSONArray("public_keys");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+            List<String> keyIds = new ArrayList<String>(publicKeys.length());
+            for (int i = 0; i < publicKeys.length(); i++) {
+                keyIds.add(publicKeys.getJSONObject(i).getString("key_id"));
+            }
+            return keyIds;
+        }
+
+        private static String toJson(String name, List<String> keyIds) throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put(name, new JSONArray(keyIds));
+            return json.toString();
+        }
+    }
+}
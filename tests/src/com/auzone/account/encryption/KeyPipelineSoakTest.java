@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.encryption;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.InstrumentationTestRunner;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import com.auzone.account.provider.KeyStore;
+import com.auzone.account.util.AuzoneAccountUtils;
+
+import java.util.Set;
+
+/**
+ * Soak harness for the generate, store, upload and reconcile cycle.
+ *
+ * Each pool size gets its own in-memory KeyStore.  The keys are generated and stored the way
+ * GeneratePublicKeysTask stores them, then uploaded and reconciled by the real task and
+ * reconciler against KeyPipelineHarness's stub server, which adds latency and fails a share
+ * of uploads.
+ *
+ * Needs an account to be configured so keys can be signed; the harness is skipped otherwise.
+ *
+ *   adb shell am instrument -w -e class com.auzone.account.encryption.KeyPipelineSoakTest \
+ *       -e sizes 25,100,1000,10000 -e latency 50 -e failure_rate 0.1 \
+ *       com.auzone.account.tests/android.test.InstrumentationTestRunner
+ */
+@LargeTest
+public class KeyPipelineSoakTest extends InstrumentationTestCase {
+    private static final String TAG = KeyPipelineSoakTest.class.getSimpleName();
+
+    private static final String ARG_SIZES = "sizes";
+    private static final String ARG_LATENCY = "latency";
+    private static final String ARG_FAILURE_RATE = "failure_rate";
+    private static final String DEFAULT_SIZES = "25,100,1000,10000";
+    private static final long DEFAULT_LATENCY_MS = 20;
+    private static final float DEFAULT_FAILURE_RATE = 0.1f;
+
+    // Share of the uploaded keys the stub server hands out before reconciling
+    private static final float CONSUMED_FRACTION = 0.1f;
+
+    private Context mContext;
+    private KeyPipelineHarness.StubServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new KeyPipelineHarness.IsolatedContext(getInstrumentation().getTargetContext());
+        mServer = new KeyPipelineHarness.StubServer(mContext, getLongArgument(ARG_LATENCY, DEFAULT_LATENCY_MS),
+                getFloatArgument(ARG_FAILURE_RATE, DEFAULT_FAILURE_RATE));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        KeyPipelineHarness.cancelRetry(mContext);
+        super.tearDown();
+    }
+
+    public void testSoak() throws Exception {
+        byte[] hmacSecret = AuzoneAccountUtils.getHmacSecret(mContext);
+        if (AuzoneAccountUtils.getAuzoneAccountAccount(mContext) == null || hmacSecret == null) {
+            Log.w(TAG, "No AuzoneAccount configured, skipping");
+            return;
+        }
+        String sizes = getStringArgument(ARG_SIZES, DEFAULT_SIZES);
+        for (String size : sizes.split(",")) {
+            runCycle(Integer.parseInt(size.trim()), hmacSecret);
+        }
+    }
+
+    private void runCycle(int poolSize, byte[] hmacSecret) throws Exception {
+        KeyStore keyStore = KeyStore.createInMemory(mContext);
+        mServer.reset();
+
+        long start = SystemClock.elapsedRealtime();
+        KeyPipelineHarness.generateKeys(keyStore, poolSize, hmacSecret);
+        long generated = SystemClock.elapsedRealtime();
+        KeyPipelineHarness.uploadAll(mContext, mServer, keyStore);
+        long uploaded = SystemClock.elapsedRealtime();
+        assertEquals(poolSize, mServer.getKeyCount());
+
+        Set<String> consumed = mServer.consume((int) (poolSize * CONSUMED_FRACTION));
+        KeyPipelineHarness.reconcile(mContext, mServer, keyStore);
+        long reconciled = SystemClock.elapsedRealtime();
+        assertEquals(poolSize - consumed.size(), keyStore.getKeyPairCount());
+        for (KeyStore.ECDHKey key : keyStore.getPublicKeys()) {
+            assertFalse("Consumed key " + key.getKeyId() + " was not pruned", consumed.contains(key.getKeyId()));
+        }
+
+        Log.i(TAG, "pool=" + poolSize
+                + " keys/sec=" + poolSize * 1000f / Math.max(1, generated - start)
+                + " timeToRefill=" + (uploaded - start) + " ms"
+                + " uploads=" + mServer.getUploads()
+                + " uploadBytes=" + mServer.getUploadBytes()
+                + " retries=" + mServer.getFailures()
+                + " reconcile=" + (reconciled - uploaded) + " ms, pruned " + consumed.size());
+    }
+
+    private String getStringArgument(String name, String defaultValue) {
+        Bundle arguments = ((InstrumentationTestRunner) getInstrumentation()).getArguments();
+        String value = arguments != null ? arguments.getString(name) : null;
+        return value != null ? value : defaultValue;
+    }
+
+    private long getLongArgument(String name, long defaultValue) {
+        String value = getStringArgument(name, null);
+        return value != null ? Long.parseLong(value) : defaultValue;
+    }
+
+    private float getFloatArgument(String name, float defaultValue) {
+        String value = getStringArgument(name, null);
+        return value != null ? Float.parseFloat(value) : defaultValue;
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.gcm;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Process;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.InstrumentationTestRunner;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import com.android.volley.Response;
+import com.auzone.account.api.request.SendChannelRequestBody;
+import com.auzone.account.auth.AuthClient;
+import com.auzone.account.encryption.ECKeyPair;
+import com.auzone.account.encryption.KeyPoolController;
+import com.auzone.account.gcm.model.GCMessage;
+import com.auzone.account.gcm.model.PlaintextMessage;
+import com.auzone.account.provider.InboundJournal;
+import com.auzone.account.provider.KeyStore;
+import com.auzone.account.util.AuzoneAccountUtils;
+import com.auzone.account.util.EncryptionUtils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Push simulator for the inbound path.  Builds correctly signed and encrypted secure messages
+ * the way the server does and feeds them to GCMIntentService at a fixed rate, then reports
+ * what MessageStats measured along with the allocation rate.
+ *
+ * The service runs in process against an in-memory KeyStore and journal, a key pool controller
+ * with its own preferences and a client that never reaches the server, so the device's keys
+ * and pool size are left alone.  The inner command is a no-op the test registers, so each
+ * message is verified, sequenced, decrypted and dispatched without locating or wiping anything.
+ * Needs an account to be configured, for the HMAC secret; the harness is skipped otherwise.
+ *
+ *   adb shell am instrument -w -e class com.auzone.account.gcm.MessageThroughputTest \
+ *       -e messages 500 -e rate 100 com.auzone.account.tests/android.test.InstrumentationTestRunner
+ */
+@LargeTest
+public class MessageThroughputTest extends InstrumentationTestCase {
+    private static final String TAG = MessageThroughputTest.class.getSimpleName();
+
+    private static final String ARG_MESSAGES = "messages";
+    private static final String ARG_RATE = "rate";
+    private static final int DEFAULT_MESSAGES = 200;
+    private static final int DEFAULT_RATE = 50;
+
+    private static final String COMMAND_NOOP = "throughput_test_noop";
+    private static final String PREFS_NAME = "throughput_test";
+    private static final long DRAIN_TIMEOUT_MS = 1000 * 60;
+
+    private Context mContext;
+    private KeyStore mKeyStore;
+    private ThroughputService mService;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new IsolatedContext(getInstrumentation().getTargetContext());
+        mKeyStore = KeyStore.createInMemory(mContext);
+        mService = new ThroughputService(mContext, mKeyStore);
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mService.onCreate();
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mService.onDestroy();
+            }
+        });
+        mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear().commit();
+        super.tearDown();
+    }
+
+    public void testThroughput() throws Exception {
+        MessageContext messageContext = MessageContext.getInstance(mContext);
+        byte[] hmacSecret = messageContext.getHmacSecret();
+        if (messageContext.getAccount() == null || hmacSecret == null) {
+            Log.w(TAG, "No AuzoneAccount configured, skipping");
+            return;
+        }
+        int messages = getIntArgument(ARG_MESSAGES, DEFAULT_MESSAGES);
+        int rate = getIntArgument(ARG_RATE, DEFAULT_RATE);
+
+        // Built up front so the send loop only measures the device side
+        List<String> data = new ArrayList<String>(messages);
+        for (int i = 0; i < messages; i++) {
+            data.add(buildSecureMessage(hmacSecret));
+        }
+
+        MessageStats stats = MessageStats.getInstance();
+        long expected = stats.getMessageCount() + messages;
+        Debug.startAllocCounting();
+        int allocations = Debug.getGlobalAllocCount();
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < messages; i++) {
+            SystemClock.sleep(Math.max(0, start + i * 1000L / rate - SystemClock.elapsedRealtime()));
+            final Intent intent = new Intent(mContext, GCMIntentService.class);
+            intent.setAction(GCMIntentService.ACTION_RECEIVE);
+            intent.putExtra("data", data.get(i));
+            final int startId = i + 1;
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mService.onStartCommand(intent, 0, startId);
+                }
+            });
+        }
+        while (stats.getMessageCount() < expected
+                && SystemClock.elapsedRealtime() - start < DRAIN_TIMEOUT_MS) {
+            SystemClock.sleep(10);
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        allocations = Debug.getGlobalAllocCount() - allocations;
+        Debug.stopAllocCounting();
+        assertTrue("Only " + (messages - (expected - stats.getMessageCount())) + " of " + messages
+                + " messages were handled", stats.getMessageCount() >= expected);
+        assertEquals(messages, mService.getHandled());
+        assertEquals(0, mService.getFailuresSent());
+        assertEquals(0, mKeyStore.getKeyPairCount());
+
+        StringWriter sw = new StringWriter();
+        stats.dump(new PrintWriter(sw));
+        Log.i(TAG, "Sent " + messages + " messages at " + rate + "/sec, drained in " + elapsed + " ms\n"
+                + sw + "  allocations/message=" + (float) allocations / messages
+                + " allocations/sec=" + allocations * 1000f / Math.max(1, elapsed));
+    }
+
+    /**
+     * Stores a fresh device key pair in the test's KeyStore and returns a secure message
+     * addressed to it, signed with the account's HMAC secret.
+     */
+    private String buildSecureMessage(byte[] hmacSecret) throws JSONException {
+        ECKeyPair deviceKeyPair = EncryptionUtils.ECDH.generateKeyPair();
+        byte[] devicePublicKey = deviceKeyPair.getPublicKey().getQ().getEncoded();
+        mKeyStore.putKeyPair(deviceKeyPair.getKeyId(), deviceKeyPair.getPrivateKey().getD().toByteArray(),
+                devicePublicKey, AuzoneAccountUtils.encodeHex(devicePublicKey), null);
+
+        ECKeyPair remoteKeyPair = EncryptionUtils.ECDH.generateKeyPair();
+        byte[] symmetricKey = EncryptionUtils.ECDH.calculateSecret(remoteKeyPair.getPrivateKey(),
+                deviceKeyPair.getPublicKey());
+        byte[] ciphertext = EncryptionUtils.AES.encrypt(new PlaintextMessage(COMMAND_NOOP).toJson(), symmetricKey);
+
+        JSONObject payload = new JSONObject();
+        payload.put("ciphertext", AuzoneAccountUtils.encodeHex(ciphertext));
+        payload.put("key_id", deviceKeyPair.getKeyId());
+        payload.put("public_key", AuzoneAccountUtils.encodeHex(remoteKeyPair.getPublicKey().getQ().getEncoded()));
+        String payloadJson = payload.toString();
+
+        // No session exists for a new key, so any non-negative sequence is accepted
+        int sequence = 1;
+        JSONObject message = new JSONObject();
+        message.put("command", GCMessage.COMMAND_SECURE_MESSAGE);
+        message.put("payload", payloadJson);
+        message.put("sequence", sequence);
+        message.put("signature", EncryptionUtils.HMAC.getSignature(hmacSecret, sequence + ":" + payloadJson));
+        return message.toString();
+    }
+
+    private int getIntArgument(String name, int defaultValue) {
+        Bundle arguments = ((InstrumentationTestRunner) getInstrumentation()).getArguments();
+        String value = arguments != null ? arguments.getString(name) : null;
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    /**
+     * Keeps the key pool's refill requests from starting ECDHKeyService on the real store.
+     */
+    private static class IsolatedContext extends ContextWrapper {
+        IsolatedContext(Context base) {
+            super(base);
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public ComponentName startService(Intent intent) {
+            return intent.getComponent();
+        }
+    }
+
+    /**
+     * GCMIntentService over the test's stores, driven directly rather than through the
+     * framework.  It is never attached to the activity manager, so stopSelf is a no-op.
+     */
+    private static class ThroughputService extends GCMIntentService {
+        private final KeyStore mKeyStore;
+        private final AtomicInteger mHandled = new AtomicInteger();
+        private final AtomicInteger mFailuresSent = new AtomicInteger();
+
+        ThroughputService(Context context, KeyStore keyStore) {
+            attachBaseContext(context);
+            mKeyStore = keyStore;
+        }
+
+        int getHandled() {
+            return mHandled.get();
+        }
+
+        int getFailuresSent() {
+            return mFailuresSent.get();
+        }
+
+        @Override
+        AuthClient getAuthClient() {
+            return new OfflineClient(getApplicationContext(), mKeyStore, mFailuresSent);
+        }
+
+        @Override
+        KeyStore getKeyStore() {
+            return mKeyStore;
+        }
+
+        @Override
+        KeyPoolController getKeyPoolController() {
+            SharedPreferences prefs = getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            return KeyPoolController.create(prefs);
+        }
+
+        @Override
+        InboundJournal getJournal() {
+            return InboundJournal.createInMemory(getApplicationContext());
+        }
+
+        @Override
+        void registerCommands(CommandRegistry commands) {
+            super.registerCommands(commands);
+            commands.register(new CommandRegistry.Command(COMMAND_NOOP, CommandRegistry.FLAG_ENCRYPTED,
+                    Process.THREAD_PRIORITY_BACKGROUND, new CommandRegistry.Handler() {
+                        @Override
+                        public void handle(String keyId, long traceId) {
+                            mHandled.incrementAndGet();
+                        }
+                    }));
+        }
+    }
+
+    /**
+     * Keeps sessions in the test's KeyStore and counts send_channel calls instead of making them.
+     */
+    private static class OfflineClient extends AuthClient {
+        private final AtomicInteger mSendChannelCalls;
+
+        OfflineClient(Context context, KeyStore keyStore, AtomicInteger sendChannelCalls) {
+            super(context, keyStore);
+            mSendChannelCalls = sendChannelCalls;
+        }
+
+        @Override
+        public void sendChannel(SendChannelRequestBody sendChannelRequestBody, Response.Listener<Integer> listener,
+                Response.ErrorListener errorListener) {
+            mSendChannelCalls.incrementAndGet();
+        }
+    }
+}
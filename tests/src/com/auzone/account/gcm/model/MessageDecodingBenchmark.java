@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.gcm.model;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Allocations and time per inbound secure message, decoding it the way GCMIntentService used
+ * to and the way it does now.
+ *
+ * The old path parsed the envelope and the plaintext with reflective Gson, built a new Gson
+ * for the payload, and in debug builds logged the envelope through a new pretty-printing
+ * Gson.  The new path runs all three parses through Messages.GSON and its streaming adapters.
+ * Only decoding is measured; the payload is not real ciphertext.
+ */
+@LargeTest
+public class MessageDecodingBenchmark extends AndroidTestCase {
+    private static final String TAG = MessageDecodingBenchmark.class.getSimpleName();
+
+    private static final int WARMUP = 500;
+    private static final int ITERATIONS = 2000;
+
+    private String mMessage;
+    private String mPlaintext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMessage = buildMessage();
+        mPlaintext = new PlaintextMessage(PlaintextMessage.COMMAND_BEGIN_LOCATE).toJson();
+    }
+
+    public void testAllocationsPerMessage() throws Exception {
+        Gson gson = new Gson();
+        runOld(gson, WARMUP);
+        runNew(WARMUP);
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            long start = System.nanoTime();
+            runOld(gson, ITERATIONS);
+            long oldNanos = System.nanoTime() - start;
+            int oldAllocations = Debug.getThreadAllocCount();
+
+            Debug.resetThreadAllocCount();
+            start = System.nanoTime();
+            runNew(ITERATIONS);
+            long newNanos = System.nanoTime() - start;
+            int newAllocations = Debug.getThreadAllocCount();
+
+            Log.i(TAG, "reflective: " + (float) oldAllocations / ITERATIONS + " allocations, "
+                    + oldNanos / ITERATIONS / 1000 + " us per message; streaming: "
+                    + (float) newAllocations / ITERATIONS + " allocations, "
+                    + newNanos / ITERATIONS / 1000 + " us per message");
+            assertTrue(newAllocations < oldAllocations);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    private void runOld(Gson gson, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            GCMessage message = gson.fromJson(mMessage, GCMessage.class);
+            new GsonBuilder().setPrettyPrinting().create().toJson(message);
+            EncryptedMessage encryptedMessage = new Gson().fromJson(message.getPayload(), EncryptedMessage.class);
+            encryptedMessage.getKeyId();
+            gson.fromJson(mPlaintext, PlaintextMessage.class);
+        }
+    }
+
+    private void runNew(int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            GCMessage message = Messages.GSON.fromJson(mMessage, GCMessage.class);
+            EncryptedMessage encryptedMessage = EncryptedMessage.fromJson(message.getPayload());
+            encryptedMessage.getKeyId();
+            PlaintextMessage.fromJson(mPlaintext);
+        }
+    }
+
+    /**
+     * A secure message shaped like the server's, with hex fields of realistic length.
+     */
+    private static String buildMessage() throws JSONException {
+        JSONObject payload = new JSONObject();
+        payload.put("ciphertext", hex(96));
+        payload.put("key_id", "a1b2c3d4e5f60718");
+        payload.put("public_key", hex(65));
+
+        JSONObject message = new JSONObject();
+        message.put("command", GCMessage.COMMAND_SECURE_MESSAGE);
+        message.put("account", "user@example.com");
+        message.put("payload", payload.toString());
+        message.put("signature", hex(32));
+        message.put("sequence", 1);
+        return message.toString();
+    }
+
+    private static String hex(int bytes) {
+        StringBuilder sb = new StringBuilder(bytes * 2);
+        for (int i = 0; i < bytes; i++) {
+            sb.append(String.format("%02x", i & 0xff));
+        }
+        return sb.toString();
+    }
+}
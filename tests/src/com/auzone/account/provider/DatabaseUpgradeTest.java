@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2013 The auzone Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.auzone.account.provider;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Upgrades a fixture database from every schema version DatabaseHelper can migrate and checks
+ * that the rows come through intact.
+ *
+ * Each fixture is built from the DDL that shipped with its version, not from the migration
+ * steps, so a step that drifts from what devices actually have fails here.
+ */
+@MediumTest
+public class DatabaseUpgradeTest extends AndroidTestCase {
+
+    private static final String DATABASE_NAME = "upgrade_test.db";
+
+    private static final int OLDEST_VERSION = 7;
+    private static final int CURRENT_VERSION = 13;
+
+    private static final byte[] SYMMETRIC_KEY = new byte[] { 0x00, 0x11, 0x22, (byte) 0xff };
+    private static final byte[] PRIVATE_KEY = new byte[] { 0x01, 0x23, 0x45, 0x67 };
+    private static final byte[] PUBLIC_KEY = new byte[] { 0x04, (byte) 0x89, (byte) 0xab, (byte) 0xcd };
+    private static final String EXPIRATION = "2030-01-01 12:00:00";
+    private static final String ENCODED = "0489abcd";
+    private static final String SIGNATURE = "signature";
+
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testUpgradeFromEveryVersion() throws Exception {
+        for (int version = OLDEST_VERSION; version <= CURRENT_VERSION; version++) {
+            mContext.deleteDatabase(DATABASE_NAME);
+            SQLiteDatabase fixture = openFixture();
+            createFixture(fixture, version);
+            fixture.close();
+
+            DatabaseHelper helper = new DatabaseHelper(mContext, DATABASE_NAME);
+            try {
+                SQLiteDatabase db = helper.getWritableDatabase();
+                assertEquals(CURRENT_VERSION, db.getVersion());
+                checkSymmetricKey(db, version);
+                checkECDHKey(db, version);
+                checkCurrentSchema(db);
+            } finally {
+                helper.close();
+            }
+        }
+    }
+
+    public void testUpgradeDropsUndecodableRows() throws Exception {
+        SQLiteDatabase fixture = openFixture();
+        createFixture(fixture, OLDEST_VERSION);
+        fixture.execSQL("INSERT INTO symmetric_keys (symmetric_key, key_id) VALUES ('not hex', 'bad-symmetric')");
+        fixture.execSQL("INSERT INTO ecdh_keys (key_id, private, public) VALUES ('bad-ecdh', 'abc', '0489abcd')");
+        fixture.close();
+
+        DatabaseHelper helper = new DatabaseHelper(mContext, DATABASE_NAME);
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            assertEquals(CURRENT_VERSION, db.getVersion());
+            assertEquals(1, count(db, "symmetric_keys"));
+            assertEquals(1, count(db, "ecdh_keys"));
+            checkSymmetricKey(db, OLDEST_VERSION);
+            checkECDHKey(db, OLDEST_VERSION);
+        } finally {
+            helper.close();
+        }
+    }
+
+    private SQLiteDatabase openFixture() {
+        return mContext.openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE, null);
+    }
+
+    /**
+     * Creates the tables as they were at version and inserts one symmetric key and one ECDH key.
+     */
+    private static void createFixture(SQLiteDatabase db, int version) {
+        boolean blobKeys = version >= 8;
+        String keyType = blobKeys ? "BLOB" : "TEXT";
+        if (version >= 9) {
+            db.execSQL("CREATE TABLE symmetric_keys (_id INTEGER PRIMARY KEY, symmetric_key BLOB NOT NULL, "
+                    + "local_sequence INTEGER NOT NULL DEFAULT 1, remote_sequence INTEGER NOT NULL DEFAULT 1, "
+                    + "expires_at INTEGER NOT NULL DEFAULT 0, key_id TEXT NOT NULL UNIQUE);");
+            db.execSQL("create trigger update_expiration after insert on symmetric_keys"
+                    + " begin update symmetric_keys set expires_at = (strftime('%s', 'now') + 3600) * 1000"
+                    + " where _id = new._id and expires_at = 0; end");
+        } else {
+            db.execSQL("CREATE TABLE symmetric_keys (_id INTEGER PRIMARY KEY, symmetric_key " + keyType
+                    + " NOT NULL, local_sequence INTEGER NOT NULL DEFAULT 1, "
+                    + "remote_sequence INTEGER NOT NULL DEFAULT 1, expiration DATETIME DEFAULT 0, "
+                    + "key_id TEXT NOT NULL UNIQUE);");
+            db.execSQL("create trigger update_expiration after insert on symmetric_keys"
+                    + " begin update symmetric_keys set expiration"
+                    + "= datetime('now', '+60 minutes', 'localtime') where expiration = 0"
+                    + "; end");
+        }
+        db.execSQL("CREATE TABLE ecdh_keys (_id INTEGER PRIMARY KEY, key_id TEXT NOT NULL UNIQUE, "
+                + "private " + keyType + " NOT NULL, public " + keyType + " NOT NULL"
+                + (version >= 10 ? ", uploaded INTEGER NOT NULL DEFAULT 0" : "")
+                + (version >= 11 ? ", encoded TEXT, signature TEXT" : "")
+                + ");");
+        if (version >= 12) {
+            db.execSQL("CREATE TABLE inbound_journal (_id INTEGER PRIMARY KEY, message TEXT NOT NULL, "
+                    + "stage INTEGER NOT NULL DEFAULT 0, received_at INTEGER NOT NULL"
+                    + (version >= 13 ? ", attempts INTEGER NOT NULL DEFAULT 0" : "") + ");");
+        }
+
+        String symmetricKey = blobKeys ? "X'" + toHex(SYMMETRIC_KEY) + "'" : "'" + toHex(SYMMETRIC_KEY) + "'";
+        if (version >= 9) {
+            db.execSQL("INSERT INTO symmetric_keys (symmetric_key, local_sequence, remote_sequence, expires_at, key_id) "
+                    + "VALUES (" + symmetricKey + ", 3, 4, " + getExpiresAt() + ", 'symmetric')");
+        } else {
+            db.execSQL("INSERT INTO symmetric_keys (symmetric_key, local_sequence, remote_sequence, expiration, key_id) "
+                    + "VALUES (" + symmetricKey + ", 3, 4, '" + EXPIRATION + "', 'symmetric')");
+        }
+
+        String privateKey = blobKeys ? "X'" + toHex(PRIVATE_KEY) + "'" : "'" + toHex(PRIVATE_KEY) + "'";
+        String publicKey = blobKeys ? "X'" + toHex(PUBLIC_KEY) + "'" : "'" + toHex(PUBLIC_KEY) + "'";
+        if (version >= 11) {
+            db.execSQL("INSERT INTO ecdh_keys (key_id, private, public, uploaded, encoded, signature) "
+                    + "VALUES ('ecdh', " + privateKey + ", " + publicKey + ", 1, '" + ENCODED + "', '" + SIGNATURE + "')");
+        } else if (version >= 10) {
+            db.execSQL("INSERT INTO ecdh_keys (key_id, private, public, uploaded) "
+                    + "VALUES ('ecdh', " + privateKey + ", " + publicKey + ", 1)");
+        } else {
+            db.execSQL("INSERT INTO ecdh_keys (key_id, private, public) "
+                    + "VALUES ('ecdh', " + privateKey + ", " + publicKey + ")");
+        }
+        db.setVersion(version);
+    }
+
+    private static void checkSymmetricKey(SQLiteDatabase db, int fromVersion) {
+        Cursor c = db.rawQuery("SELECT symmetric_key, local_sequence, remote_sequence, expires_at "
+                + "FROM symmetric_keys WHERE key_id = 'symmetric'", null);
+        try {
+            assertTrue("Symmetric key lost upgrading from " + fromVersion, c.moveToFirst());
+            assertTrue(Arrays.equals(SYMMETRIC_KEY, c.getBlob(0)));
+            assertEquals(3, c.getInt(1));
+            assertEquals(4, c.getInt(2));
+            assertEquals("expires_at upgrading from " + fromVersion, getExpiresAt(), c.getLong(3));
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void checkECDHKey(SQLiteDatabase db, int fromVersion) {
+        Cursor c = db.rawQuery("SELECT private, public, uploaded, encoded, signature "
+                + "FROM ecdh_keys WHERE key_id = 'ecdh'", null);
+        try {
+            assertTrue("ECDH key lost upgrading from " + fromVersion, c.moveToFirst());
+            assertTrue(Arrays.equals(PRIVATE_KEY, c.getBlob(0)));
+            assertTrue(Arrays.equals(PUBLIC_KEY, c.getBlob(1)));
+            // Keys from before uploads were tracked are treated as pending
+            assertEquals(fromVersion >= 10 ? 1 : 0, c.getInt(2));
+            assertEquals(fromVersion >= 11 ? ENCODED : null, c.getString(3));
+            assertEquals(fromVersion >= 11 ? SIGNATURE : null, c.getString(4));
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * The trigger and the tables added after the fixture's version work as in a fresh install.
+     */
+    private static void checkCurrentSchema(SQLiteDatabase db) {
+        long before = System.currentTimeMillis();
+        db.execSQL("INSERT INTO symmetric_keys (symmetric_key, key_id) VALUES (X'00', 'new')");
+        Cursor c = db.rawQuery("SELECT expires_at FROM symmetric_keys WHERE key_id = 'new'", null);
+        try {
+            assertTrue(c.moveToFirst());
+            // The trigger works in whole seconds
+            assertTrue(c.getLong(0) >= before / 1000 * 1000 + 1000 * 60 * 60);
+        } finally {
+            c.close();
+        }
+        db.execSQL("INSERT INTO inbound_journal (message, received_at) VALUES ('{}', 0)");
+        c = db.rawQuery("SELECT stage, attempts FROM inbound_journal", null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(0, c.getInt(0));
+            assertEquals(0, c.getInt(1));
+            assertFalse(c.moveToNext());
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * EXPIRATION was stored in local time; version 9 converts it to UTC epoch millis.
+     */
+    private static long getExpiresAt() {
+        try {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).parse(EXPIRATION).getTime();
+        } catch (ParseException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static int count(SQLiteDatabase db, String table) {
+        Cursor c = db.rawQuery("SELECT COUNT(*) FROM " + table, null);
+        try {
+            c.moveToFirst();
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}